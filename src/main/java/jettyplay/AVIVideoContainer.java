@@ -256,8 +256,8 @@ public class AVIVideoContainer extends FixedFramerateVideoContainer {
         public void serialize(OutputStream os) throws IOException {
             copyIntegerAs4ByteLE(length-8, lengthPlaceholder, 0);
             int i = 0;
+            byte[] buffer = new byte[65536];
             while (i < length) {
-                byte[] buffer = new byte[65536];
                 int len = bytes.getRestOfChunk(i, buffer, 0, 65536);
                 os.write(buffer, 0, len);
                 i += len;
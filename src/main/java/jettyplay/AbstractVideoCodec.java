@@ -8,6 +8,7 @@ import java.awt.Font;
 import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
 import java.awt.image.ColorModel;
+import java.awt.image.ComponentSampleModel;
 import java.awt.image.DataBufferByte;
 import java.awt.image.Raster;
 import java.awt.image.WritableRaster;
@@ -17,6 +18,9 @@ import java.util.Hashtable;
 /**
  * A skeleton implementation for codecs. It handles rendering the frames to
  * a suitable buffer (the exact type can be chosen by an overriding codec).
+ * Frames are rendered by writing straight into the buffer's pixels, rather
+ * than via Java2D, and only the parts of the terminal that have changed
+ * since the previous frame are redrawn.
  * 
  * @author ais523
  */
@@ -30,6 +34,7 @@ public abstract class AbstractVideoCodec extends VideoCodec {
     private Graphics2D graphics;
     private DataBufferByte dataBuffer = null;
     private BufferedImage image = null;
+    private ComponentSampleModel sampleModel = null;
     private final boolean allowBold;
     
     /**
@@ -64,7 +69,9 @@ public abstract class AbstractVideoCodec extends VideoCodec {
         /* Make sure the renderer is looking at the appropriate frame, and
          * make sure that the renderer and image exist. */
         int size = getUncompressedFrameSize(frame);
-        renderer.redraw(graphics, imageWidth, imageHeight);
+        renderer.redraw(dataBuffer.getData(),
+                sampleModel.getScanlineStride(), sampleModel.getPixelStride(),
+                sampleModel.getBandOffsets(), imageWidth, imageHeight);
         return Arrays.copyOf(dataBuffer.getData(), size);
     }
 
@@ -131,9 +138,11 @@ public abstract class AbstractVideoCodec extends VideoCodec {
             dataBuffer = new DataBufferByte(w * h * getColorDepth() / 8);
             WritableRaster wr = Raster.createInterleavedRaster(
                     dataBuffer, w, h, w * getColorDepth() / 8,
-                    4, getPixelOrder(), null);
+                    getColorDepth() / 8, getPixelOrder(), null);
             
             image = new BufferedImage(getColorModel(), wr, false, new Hashtable<>());
+            // The renderer writes pixels the same way that Java2D would.
+            sampleModel = (ComponentSampleModel) wr.getSampleModel();
             
             imageWidth = w;
             imageHeight = h;
@@ -1,48 +1,214 @@
 package jettyplay;
 
+import java.nio.ByteBuffer;
 import java.util.AbstractList;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * An implementation of List, designed so that appending an array to the list
  * is a fast operation. It also records the times at which array chunks are
  * appended, for use with live data.
+ * <p>
+ * Internally, everything is stored as primitive arrays: each chunk is a
+ * byte[], and the chunk boundaries and times are held in long[]s, so that
+ * reading from the list never needs to box a byte. The methods from List
+ * still work, but callers that care about speed should use getByte() and
+ * getRestOfChunk() instead of get().
+ * <p>
+ * As an alternative to a byte[], a chunk can also be a ByteBuffer (typically
+ * a MappedByteBuffer that maps part of a file into memory). This allows
+ * large files to be read without copying them onto the heap; reads from such
+ * a chunk go directly to the buffer. If the file behind a buffer shrinks, the
+ * list should be truncated to match (see truncate()); a read that races with
+ * that and finds the data gone throws IndexOutOfBoundsException, as though
+ * the data had never been there.
+ * <p>
+ * The list is designed to be appended to by one thread while any number of
+ * other threads read from it. Writers synchronize on the list's monitor;
+ * readers take no locks at all, but instead see a snapshot of the list that
+ * is published (via a volatile field) after each append. A reader that needs
+ * data beyond the current end of the list can block in awaitLength(), and
+ * will be woken when enough data has been appended; appends don't signal
+ * anyone unless there are readers actually waiting.
  * @author ais523
  */
 public class ByteChunkList extends AbstractList<Byte> {
-    ArrayList<Object> backingList; // holds chunks of byte[], Byte[], ArrayList<Byte>
-    ArrayList<Integer> cumulativeSizeList;
-    ArrayList<Date> chunkTimeList;
-    
+    /**
+     * An immutable view of the list's contents. The arrays may be shared
+     * with later snapshots, but the first count elements of each are never
+     * changed once the snapshot has been published.
+     */
+    private static final class Snapshot {
+        final byte[][] chunks;
+        final ByteBuffer[] buffers; // used for chunks whose chunks[i] is null
+        final long[] cumulativeSizes; // cumulativeSizes[i] = end of chunk i
+        final long[] chunkTimes; // in milliseconds, as with Date.getTime()
+        final int count;
+        final long size;
+
+        Snapshot(byte[][] chunks, ByteBuffer[] buffers, long[] cumulativeSizes,
+                 long[] chunkTimes, int count) {
+            this.chunks = chunks;
+            this.buffers = buffers;
+            this.cumulativeSizes = cumulativeSizes;
+            this.chunkTimes = chunkTimes;
+            this.count = count;
+            this.size = count == 0 ? 0 : cumulativeSizes[count - 1];
+        }
+
+        long chunkStart(int chunk) {
+            return chunk == 0 ? 0 : cumulativeSizes[chunk - 1];
+        }
+
+        int chunkLength(int chunk) {
+            return (int) (cumulativeSizes[chunk] - chunkStart(chunk));
+        }
+    }
+
+    private volatile Snapshot snapshot;
+    private volatile boolean complete;
+    /* The chunk that was most recently looked up. Reads are nearly always
+     * sequential, so this avoids a binary search most of the time. It's
+     * only a hint (and is validated before use), so races on it between
+     * readers are harmless. */
+    private int lastChunk;
+
+    private final ReentrantLock waitLock = new ReentrantLock();
+    private final Condition grown = waitLock.newCondition();
+    private volatile int waiters;
+
     /**
      * Creates a new empty ByteChunkList.
      */
     public ByteChunkList() {
-        backingList = new ArrayList<>();
-        cumulativeSizeList = new ArrayList<>();
-        chunkTimeList = new ArrayList<>();
+        snapshot = new Snapshot(new byte[16][], new ByteBuffer[16],
+                new long[16], new long[16], 0);
+        complete = false;
+        lastChunk = 0;
+        waiters = 0;
     }
 
-    private int findChunk(int index) {
+    private int findChunk(Snapshot s, long index) {
+        if (index < 0 || index >= s.size)
+            throw new IndexOutOfBoundsException();
+        // Try the cached chunk, and the one after it, first.
+        int c = lastChunk;
+        if (c < s.count && index >= s.chunkStart(c)) {
+            if (index < s.cumulativeSizes[c]) return c;
+            if (c + 1 < s.count && index < s.cumulativeSizes[c + 1]) {
+                lastChunk = c + 1;
+                return c + 1;
+            }
+        }
         // We find the chunk that the index index is in via binary search.
-        int searchDistance = cumulativeSizeList.size();
-        if (searchDistance == 0) throw new IndexOutOfBoundsException();
-        int currentIndex = 0;
-        while (searchDistance > 1) {
-            int t = cumulativeSizeList.get(currentIndex);
-            if (t == index) return currentIndex + 1;
-            searchDistance = (searchDistance + 1) / 2;
-            if (t < index) currentIndex += searchDistance;
-            else currentIndex -= searchDistance;
-            if (currentIndex < 0) currentIndex = 0;
-            if (currentIndex >= cumulativeSizeList.size())
-                currentIndex = cumulativeSizeList.size() - 1;
+        c = Arrays.binarySearch(s.cumulativeSizes, 0, s.count, index);
+        if (c >= 0) c++; // index is the first byte of the next chunk
+        else c = -c - 1;
+        lastChunk = c;
+        return c;
+    }
+
+    /* Must be called with the list's monitor held. Exactly one of array
+     * and buffer should be non-null. */
+    private void appendChunk(byte[] array, ByteBuffer buffer, int length,
+                             long time) {
+        Snapshot s = snapshot;
+        byte[][] chunks = s.chunks;
+        ByteBuffer[] buffers = s.buffers;
+        long[] cumulativeSizes = s.cumulativeSizes;
+        long[] chunkTimes = s.chunkTimes;
+        if (s.count == chunks.length) {
+            int newCapacity = chunks.length * 2;
+            chunks = Arrays.copyOf(chunks, newCapacity);
+            buffers = Arrays.copyOf(buffers, newCapacity);
+            cumulativeSizes = Arrays.copyOf(cumulativeSizes, newCapacity);
+            chunkTimes = Arrays.copyOf(chunkTimes, newCapacity);
+        }
+        // Readers of the old snapshot never look at index s.count, so it's
+        // safe to write it in place before publishing.
+        chunks[s.count] = array;
+        buffers[s.count] = buffer;
+        cumulativeSizes[s.count] = s.size + length;
+        chunkTimes[s.count] = time;
+        snapshot = new Snapshot(chunks, buffers, cumulativeSizes, chunkTimes,
+                s.count + 1);
+    }
+
+    /* Wakes up any readers blocked in awaitLength(). This is cheap if there
+     * aren't any: the volatile write of snapshot or complete happens before
+     * the read of waiters, and a reader increments waiters before reading
+     * the size, so one side or the other always sees the change. */
+    private void signalWaiters() {
+        if (waiters == 0) return;
+        waitLock.lock();
+        try {
+            grown.signalAll();
+        } finally {
+            waitLock.unlock();
+        }
+    }
+
+    /**
+     * Blocks until the list contains at least the given number of bytes, or
+     * until it has been marked as complete.
+     * @param length The number of bytes to wait for.
+     * @param timeout The maximum amount of time to wait, in milliseconds;
+     * 0 means to wait indefinitely.
+     * @return Whether the list now contains at least length bytes.
+     * @throws InterruptedException If the thread is interrupted while waiting.
+     * @see #markComplete()
+     */
+    public boolean awaitLength(long length, long timeout)
+            throws InterruptedException {
+        if (snapshot.size >= length) return true;
+        long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+        // Let other workers run while this one waits for input.
+        WorkerPool.beginWait();
+        try {
+            waitLock.lockInterruptibly();
+            try {
+                waiters++;
+                try {
+                    while (snapshot.size < length && !complete) {
+                        if (timeout == 0) {
+                            grown.await();
+                        } else {
+                            if (nanos <= 0) break;
+                            nanos = grown.awaitNanos(nanos);
+                        }
+                    }
+                } finally {
+                    waiters--;
+                }
+            } finally {
+                waitLock.unlock();
+            }
+        } finally {
+            WorkerPool.endWait();
         }
-        if (cumulativeSizeList.get(currentIndex) <= index)
-            currentIndex++;
-        return currentIndex;
+        return snapshot.size >= length;
+    }
+
+    /**
+     * Returns whether this list has been marked as complete, i.e. whether
+     * it's known that nothing more will be appended to it.
+     * @return Whether markComplete() has been called.
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Specifies that nothing more will be appended to this list, waking up
+     * any readers that are waiting for more data.
+     */
+    public void markComplete() {
+        complete = true;
+        signalWaiters();
     }
 
     /**
@@ -55,36 +221,46 @@ public class ByteChunkList extends AbstractList<Byte> {
      * @param len The maximum number of elements to store.
      * @return The number of elements stored into storeIn.
      */
-    @SuppressWarnings({"unchecked","rawtypes"})
-    public synchronized int getRestOfChunk(
-            int index, byte[] storeIn, int off, int len) {
-        int chunk = findChunk(index);
-        int indexInChunk = index;
-        if (chunk > 0) indexInChunk -= cumulativeSizeList.get(chunk-1);
-        Object array = backingList.get(chunk);
+    public int getRestOfChunk(long index, byte[] storeIn, int off, int len) {
+        Snapshot s = snapshot;
+        int chunk = findChunk(s, index);
+        int indexInChunk = (int) (index - s.chunkStart(chunk));
         int l = len;
-        if (array instanceof byte[]) {
-            if (l + indexInChunk > ((byte[])array).length)
-                l = ((byte[])array).length - indexInChunk;
-            System.arraycopy((byte[])array, indexInChunk, storeIn, off, l);
-            return l;
-        }
-        if (array instanceof Byte[]) {
-            if (l + indexInChunk > ((Byte[])array).length)
-                l = ((Byte[])array).length - indexInChunk;
-            for (int i = 0; i < l; i++)
-                storeIn[i+off] = ((Byte[])array)[i+indexInChunk];
-            return l;
-        }
-        if (array instanceof ArrayList) {
-            ArrayList arrayList = (ArrayList) array;
-            if (l + indexInChunk > arrayList.size())
-                l = arrayList.size() - indexInChunk;
-            for (int i = 0; i < l; i++)
-                storeIn[i+off] = (Byte)arrayList.get(i+indexInChunk);
-            return l;
+        if (l + indexInChunk > s.chunkLength(chunk))
+            l = s.chunkLength(chunk) - indexInChunk;
+        byte[] array = s.chunks[chunk];
+        if (array != null) {
+            System.arraycopy(array, indexInChunk, storeIn, off, l);
+        } else {
+            // The buffer's position is shared between threads, so read via
+            // a private duplicate of it.
+            ByteBuffer view = s.buffers[chunk].duplicate();
+            view.position(indexInChunk);
+            try {
+                view.get(storeIn, off, l);
+            } catch (InternalError ex) {
+                throw mappedDataGone(ex);
+            }
         }
-        throw new IndexOutOfBoundsException("Could not find which part of the list to index");
+        return l;
+    }
+
+    /**
+     * Stores exactly len bytes from this list into storeIn, starting at
+     * index. Unlike getRestOfChunk(), this will read across chunk
+     * boundaries if necessary.
+     * @param index The index of this list to store into storeIn[off].
+     * @param storeIn The array to store the data in.
+     * @param off The index of the first element to store in.
+     * @param len The number of elements to store.
+     * @throws IndexOutOfBoundsException if the list does not contain len
+     * bytes starting at index.
+     */
+    public void getBytes(long index, byte[] storeIn, int off, int len) {
+        int done = 0;
+        while (done < len)
+            done += getRestOfChunk(index + done, storeIn, off + done,
+                    len - done);
     }
 
     /**
@@ -95,65 +271,138 @@ public class ByteChunkList extends AbstractList<Byte> {
      * array).
      * @param b The ByteChunkList to append to this ByteChunkList.
      */
-    @SuppressWarnings("unchecked")
     public synchronized void appendByteChunkList(ByteChunkList b) {
-        for (Object o : b.backingList) {
-            if (o instanceof byte[] || o instanceof Byte[]) {
-                appendArray(o);
-            } else { /* must be an ArrayList of Bytes */
-                ArrayList<Byte> oab = (ArrayList<Byte>) o;
-                cumulativeSizeList.add(size() + oab.size());
-                backingList.add(oab);
-                chunkTimeList.add(new Date());
-            }
+        Snapshot bs = b.snapshot;
+        long now = new Date().getTime();
+        for (int i = 0; i < bs.count; i++)
+            appendChunk(bs.chunks[i], bs.buffers[i], bs.chunkLength(i), now);
+        signalWaiters();
+    }
+
+    /**
+     * Returns the byte from this list at the given index, without boxing it.
+     * @param index The index to return the byte from.
+     * @return The byte at that index.
+     * @throws IndexOutOfBoundsException if the list is not long enough to
+     * contain the given index, or the given index is negative.
+     */
+    public byte getByte(long index) {
+        Snapshot s = snapshot;
+        int chunk = findChunk(s, index);
+        int indexInChunk = (int) (index - s.chunkStart(chunk));
+        byte[] array = s.chunks[chunk];
+        if (array != null) return array[indexInChunk];
+        try {
+            return s.buffers[chunk].get(indexInChunk);
+        } catch (InternalError ex) {
+            throw mappedDataGone(ex);
         }
     }
-    
+
+    /* Reading a MappedByteBuffer whose file has been truncated underneath it
+     * faults, which the JVM reports as an InternalError; this turns that
+     * into the exception for reading past the end of the list. */
+    private static IndexOutOfBoundsException mappedDataGone(InternalError ex) {
+        IndexOutOfBoundsException e = new IndexOutOfBoundsException(
+                "The file behind the list was truncated");
+        e.initCause(ex);
+        return e;
+    }
+
     /**
      * Returns the byte from this list at the given index.
      * @param index The index to return the byte from.
      * @return The byte at that index.
      * @throws IndexOutOfBoundsException if the list is not long enough to
-     * contain the given index, or the given index is negative. In some cases,
-     * there may be a spurious wrong answer, rather than an exception.
+     * contain the given index, or the given index is negative.
+     * @see #getByte(long)
      */
     @Override
-    @SuppressWarnings({"unchecked","rawtypes"})
-    public synchronized Byte get(int index) {
-        int chunk = findChunk(index);
-        int indexInChunk = index;
-        if (chunk > 0) indexInChunk -= cumulativeSizeList.get(chunk-1);
-        Object array = backingList.get(chunk);
-        if (array instanceof byte[]) return ((byte[])array)[indexInChunk];
-        if (array instanceof Byte[]) return ((Byte[])array)[indexInChunk];
-        if (array instanceof ArrayList) {
-            ArrayList arrayList = (ArrayList) array;
-            return (Byte)arrayList.get(indexInChunk);
-        }
-        throw new IndexOutOfBoundsException("Could not find which part of the list to index");
+    public Byte get(int index) {
+        return getByte(index);
     }
+
     /**
      * Returns the date of bytes in this list at the given index.
      * @param index The index to return the date from.
      * @return The date at that index.
      * @throws IndexOutOfBoundsException if the list is not long enough to
-     * contain the given index, or the given index is negative. In some cases,
-     * there may be a spurious wrong answer, rather than an exception.
+     * contain the given index, or the given index is negative.
      */
-    @SuppressWarnings({"unchecked","rawtypes"})
-    public synchronized Date getDate(int index) {
-        int chunk = findChunk(index);
-        return chunkTimeList.get(chunk);
+    public Date getDate(long index) {
+        Snapshot s = snapshot;
+        return new Date(s.chunkTimes[findChunk(s, index)]);
     }
+
     /**
-     * Returns the number of bytes in the list.
+     * Returns the number of bytes in the list. Unlike size(), this works
+     * even if there are more than Integer.MAX_VALUE bytes.
      * @return The number of bytes in the list.
      */
+    public long longSize() {
+        return snapshot.size;
+    }
+
+    /**
+     * Returns the number of bytes in the list.
+     * @return The number of bytes in the list, or Integer.MAX_VALUE if there
+     * are more bytes than that.
+     */
     @Override
-    public synchronized int size() {
-        if (cumulativeSizeList.isEmpty()) return 0;
-        return cumulativeSizeList.get(cumulativeSizeList.size()-1);
+    public int size() {
+        return (int) Math.min(longSize(), Integer.MAX_VALUE);
     }
+
+    /**
+     * Replaces the chunk containing the given index with a copy that has one
+     * byte inserted or removed, and publishes a new snapshot with the sizes
+     * of the later chunks fixed up. Existing snapshots are left untouched.
+     * A chunk that becomes empty is dropped altogether, as findChunk() relies
+     * on every chunk having a different end.
+     */
+    private void resizeChunkAt(Snapshot s, int chunk, int indexInChunk,
+                               int delta, byte element) {
+        byte[] array = s.chunks[chunk];
+        if (array == null) {
+            // Copy the buffer onto the heap so that it can be changed.
+            array = new byte[s.chunkLength(chunk)];
+            getRestOfChunk(s.chunkStart(chunk), array, 0, array.length);
+        }
+        byte[] newArray = new byte[array.length + delta];
+        if (delta > 0) {
+            System.arraycopy(array, 0, newArray, 0, indexInChunk);
+            newArray[indexInChunk] = element;
+            System.arraycopy(array, indexInChunk, newArray, indexInChunk + 1,
+                    array.length - indexInChunk);
+        } else {
+            System.arraycopy(array, 0, newArray, 0, indexInChunk);
+            System.arraycopy(array, indexInChunk + 1, newArray, indexInChunk,
+                    array.length - indexInChunk - 1);
+        }
+        byte[][] chunks = s.chunks.clone();
+        ByteBuffer[] buffers = s.buffers.clone();
+        long[] cumulativeSizes = s.cumulativeSizes.clone();
+        long[] chunkTimes = s.chunkTimes.clone();
+        chunks[chunk] = newArray;
+        buffers[chunk] = null;
+        for (int i = chunk; i < s.count; i++)
+            cumulativeSizes[i] += delta;
+        int count = s.count;
+        if (newArray.length == 0) {
+            int after = count - chunk - 1;
+            System.arraycopy(chunks, chunk + 1, chunks, chunk, after);
+            System.arraycopy(buffers, chunk + 1, buffers, chunk, after);
+            System.arraycopy(cumulativeSizes, chunk + 1, cumulativeSizes,
+                    chunk, after);
+            System.arraycopy(chunkTimes, chunk + 1, chunkTimes, chunk, after);
+            count--;
+            chunks[count] = null;
+            buffers[count] = null;
+        }
+        snapshot = new Snapshot(chunks, buffers, cumulativeSizes, chunkTimes,
+                count);
+    }
+
     /**
      * Inserts a new byte into the array at the given location, moving all the
      * other bytes forwards to fit. The timestamp of the new byte might be set
@@ -164,35 +413,12 @@ public class ByteChunkList extends AbstractList<Byte> {
      * @param element The byte to insert;
      */
     @Override
-    @SuppressWarnings({"unchecked","rawtypes"})
     public synchronized void add(int index, Byte element) {
-        if (index == size()) {appendArray(new Byte[]{element}); return;}
-        int chunk = findChunk(index);
-        int indexInChunk = index;
-        if (chunk > 0) indexInChunk -= cumulativeSizeList.get(chunk);
-        Object array = backingList.get(chunk);
-        if (array instanceof byte[]) {
-            ArrayList<Byte> al = new ArrayList<>();
-            for (byte b: (byte[])array) {
-                al.add(b);
-            }
-            backingList.set(chunk, al);
-            array = al;
-        }
-        if (array instanceof Byte[]) {
-            ArrayList<Byte> al = new ArrayList<>();
-            al.addAll(Arrays.asList((Byte[])array));
-            backingList.set(chunk, al);
-            array = al;
-        }
-        if (array instanceof ArrayList) {
-            ArrayList arrayList = (ArrayList) array;
-            arrayList.add(indexInChunk, element);
-            for (int i = chunk; i < cumulativeSizeList.size(); i++)
-                cumulativeSizeList.set(i, cumulativeSizeList.get(i)+1);
-            return;
-        }
-        throw new IndexOutOfBoundsException("Could not find which part of the list to index");
+        Snapshot s = snapshot;
+        if (index == s.size) {appendArray(new byte[]{element}); return;}
+        int chunk = findChunk(s, index);
+        resizeChunkAt(s, chunk, (int) (index - s.chunkStart(chunk)), 1,
+                element);
     }
 
     /**
@@ -202,34 +428,13 @@ public class ByteChunkList extends AbstractList<Byte> {
      * @return The byte deleted.
      */
     @Override
-    @SuppressWarnings({"unchecked","rawtypes"})
     public synchronized Byte remove(int index) {
-        int chunk = findChunk(index);
-        int indexInChunk = index;
-        if (chunk > 0) indexInChunk -= cumulativeSizeList.get(chunk-1);
-        Object array = backingList.get(chunk);
-        if (array instanceof byte[]) {
-            ArrayList<Byte> al = new ArrayList<>();
-            for (byte b: (byte[])array) {
-                al.add(b);
-            }
-            backingList.set(chunk, al);
-            array = al;
-        }
-        if (array instanceof Byte[]) {
-            ArrayList<Byte> al = new ArrayList<>();
-            al.addAll(Arrays.asList((Byte[])array));
-            backingList.set(chunk, al);
-            array = al;
-        }
-        if (array instanceof ArrayList) {
-            ArrayList arrayList = (ArrayList) array;
-            Byte b = (Byte) arrayList.remove(indexInChunk);
-            for (int i = chunk; i < cumulativeSizeList.size(); i++)
-                cumulativeSizeList.set(i, cumulativeSizeList.get(i)-1);
-            return b;
-        }
-        throw new IndexOutOfBoundsException("Could not find which part of the list to index");
+        Snapshot s = snapshot;
+        int chunk = findChunk(s, index);
+        int indexInChunk = (int) (index - s.chunkStart(chunk));
+        byte b = getByte(index);
+        resizeChunkAt(s, chunk, indexInChunk, -1, (byte) 0);
+        return b;
     }
     /**
      * Changes the value of the element at a given location. Currently
@@ -245,22 +450,57 @@ public class ByteChunkList extends AbstractList<Byte> {
     }
 
     /**
-     * Appends an array of bytes to the end of this list. The array is wrapped
-     * by this list, rather than copied; as such, changing it after it has been
-     * added might change the list. (It is guaranteed to, unless there has been
-     * a nearby insertion or deletion.)
-     * @param array Either a byte[] or a Byte[] to append.
+     * Appends an array of bytes to the end of this list, and wakes up any
+     * readers that were waiting for more data. The array is wrapped by this
+     * list, rather than copied; as such, changing it after it has been added
+     * might change the list. (It is guaranteed to, unless there has been a
+     * nearby insertion or deletion.)
+     * @param array The array to append.
+     */
+    public synchronized void appendArray(byte[] array) {
+        if (array.length == 0) return;
+        appendChunk(array, null, array.length, new Date().getTime());
+        signalWaiters();
+    }
+
+    /**
+     * Cuts the list short, discarding everything from the given index
+     * onwards, and wakes up any readers that were waiting for more data.
+     * This is meant for when the data behind buffer chunks has become
+     * unreadable (e.g. because a mapped file has been truncated); reads of
+     * the discarded part throw IndexOutOfBoundsException rather than
+     * touching the buffers.
+     * @param length The number of bytes to keep. If this is not less than
+     * the length of the list, nothing happens.
+     */
+    public synchronized void truncate(long length) {
+        Snapshot s = snapshot;
+        if (length >= s.size) return;
+        int count = 0;
+        while (count < s.count && s.chunkStart(count) < length) count++;
+        // Readers of the old snapshot can see everything up to s.count, so
+        // a truncated snapshot mustn't share storage that it would write.
+        long[] cumulativeSizes = s.cumulativeSizes.clone();
+        if (count > 0) cumulativeSizes[count - 1] = length;
+        snapshot = new Snapshot(s.chunks.clone(), s.buffers.clone(),
+                cumulativeSizes, s.chunkTimes.clone(), count);
+        signalWaiters();
+    }
+
+    /**
+     * Appends the remaining contents of a ByteBuffer (i.e. those between its
+     * position and limit) to the end of this list, and wakes up any readers
+     * that were waiting for more data. As with appendArray(), the buffer is
+     * wrapped rather than copied, so this is a cheap way to add the contents
+     * of a memory-mapped file to the list; the buffer's contents should not
+     * be changed after it has been added.
+     * @param buffer The buffer to append. Its position, limit and mark are
+     * not changed by this method, nor by later reads from the list.
      */
-    public synchronized void appendArray(Object array) {
-        int s = -1;
-        if (array instanceof byte[]) s = ((byte[])array).length;
-        if (array instanceof Byte[]) s = ((Byte[])array).length;
-        if (s == 0) return;
-        if (s > -1) {
-            cumulativeSizeList.add(size()+s);
-            backingList.add(array);
-            chunkTimeList.add(new Date());
-        } else
-            throw new ClassCastException("Argument is not a byte array");
+    public synchronized void appendBuffer(ByteBuffer buffer) {
+        if (!buffer.hasRemaining()) return;
+        ByteBuffer slice = buffer.slice();
+        appendChunk(null, slice, slice.remaining(), new Date().getTime());
+        signalWaiters();
     }
 }
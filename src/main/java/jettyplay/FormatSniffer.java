@@ -0,0 +1,135 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package jettyplay;
+
+/**
+ * Works out which format a ttyrec is in by looking at the start of its
+ * bytestream. Compressed formats are recognised by their magic numbers; for
+ * uncompressed input, the first few frame headers are checked in both the
+ * multistream and the regular ttyrec format at once, and if neither fits,
+ * the input is assumed to be in script format.
+ * <p>
+ * This means that an analyzer can start in the right format straight away,
+ * rather than trying each format in turn and starting again from the start
+ * of the input each time one fails. The guess can still be wrong (e.g. if a
+ * ttyrec becomes invalid after the headers that were checked), in which case
+ * the analyzer falls back to other formats as usual.
+ * @author ais523
+ */
+public class FormatSniffer {
+    /**
+     * The number of frame headers that must be valid before the input is
+     * assumed to be in a ttyrec format.
+     */
+    public static final int HEADERS_TO_CHECK = 16;
+
+    private final ByteChunkList bytestream;
+    private final TtyrecIndexer.HeaderChain multistream;
+    private final TtyrecIndexer.HeaderChain regular;
+    private TtyrecAnalyzer.InputFormat format = null;
+    private Ttyrec.FileType fileType = null;
+
+    /**
+     * Creates a new sniffer for the given bytestream.
+     * @param bytestream The bytestream whose format should be detected.
+     */
+    public FormatSniffer(ByteChunkList bytestream) {
+        this.bytestream = bytestream;
+        multistream = new TtyrecIndexer.HeaderChain(true);
+        regular = new TtyrecIndexer.HeaderChain(false);
+    }
+
+    /**
+     * Tries to determine the format of the bytestream, based on the data in
+     * it so far. This can be called repeatedly as more data arrives.
+     * @param noMoreData True if the caller isn't going to wait for more data
+     * (e.g. because the input is complete, or because none has arrived for a
+     * while), and so a decision should be made based on the data that's
+     * there now.
+     * @return True if the format has been determined; false if more data is
+     * needed.
+     */
+    public boolean sniff(boolean noMoreData) {
+        if (format != null) return true;
+        if (isGzip(bytestream)) {
+            format = TtyrecAnalyzer.InputFormat.GZIP;
+            fileType = Ttyrec.FileType.MultistreamTtyrec;
+            return true;
+        }
+        if (isBzip2(bytestream)) {
+            format = TtyrecAnalyzer.InputFormat.BZIP2;
+            fileType = Ttyrec.FileType.MultistreamTtyrec;
+            return true;
+        }
+        // A prefix of a magic number might still become one.
+        if (bytestream.longSize() < 3 && !noMoreData) return false;
+        stepChain(multistream);
+        stepChain(regular);
+        if (!noMoreData && (isUndecided(multistream) ||
+                            isUndecided(regular)))
+            return false;
+        // As in the analyzer, multistream is preferred if both fit.
+        if (multistream.valid && multistream.index.getFrameCount() > 0) {
+            format = TtyrecAnalyzer.InputFormat.TTYREC;
+            fileType = Ttyrec.FileType.MultistreamTtyrec;
+        } else if (regular.valid && regular.index.getFrameCount() > 0) {
+            format = TtyrecAnalyzer.InputFormat.TTYREC;
+            fileType = Ttyrec.FileType.Ttyrec;
+        } else {
+            format = TtyrecAnalyzer.InputFormat.SCRIPT;
+            fileType = Ttyrec.FileType.Ttyrec;
+        }
+        return true;
+    }
+
+    private void stepChain(TtyrecIndexer.HeaderChain chain) {
+        while (chain.index.getFrameCount() < HEADERS_TO_CHECK &&
+               chain.step(bytestream)) {}
+    }
+
+    private static boolean isUndecided(TtyrecIndexer.HeaderChain chain) {
+        return chain.valid && chain.index.getFrameCount() < HEADERS_TO_CHECK;
+    }
+
+    /**
+     * Returns the detected input format.
+     * @return The input format, or null if it hasn't been determined yet.
+     */
+    public TtyrecAnalyzer.InputFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * Returns the detected file type.
+     * @return The file type, or null if it hasn't been determined yet.
+     */
+    public Ttyrec.FileType getFileType() {
+        return fileType;
+    }
+
+    /**
+     * Checks whether a bytestream starts with the gzip magic number.
+     * @param bytestream The bytestream to check.
+     * @return Whether the bytestream looks like gzip-compressed data.
+     */
+    public static boolean isGzip(ByteChunkList bytestream) {
+        return bytestream.longSize() >= 2 &&
+               bytestream.getByte(0) == (byte) 0x1f &&
+               bytestream.getByte(1) == (byte) 0x8b;
+    }
+
+    /**
+     * Checks whether a bytestream starts with the bzip2 magic number.
+     * @param bytestream The bytestream to check.
+     * @return Whether the bytestream looks like bzip2-compressed data.
+     */
+    public static boolean isBzip2(ByteChunkList bytestream) {
+        return bytestream.longSize() >= 3 &&
+               bytestream.getByte(0) == 'B' &&
+               bytestream.getByte(1) == 'Z' &&
+               bytestream.getByte(2) == 'h';
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package jettyplay;
+
+import java.util.Arrays;
+
+/**
+ * A compact table of where each frame of a ttyrec is in its bytestream, and
+ * when it happens. This is much cheaper to build than the frames themselves
+ * (it only needs the frame headers to be read), so it can be used to learn
+ * the length and frame count of a ttyrec long before it has been analyzed.
+ * <p>
+ * The index is stored as primitive arrays, rather than as one object per
+ * frame, so that it remains small even for recordings with millions of
+ * frames. One thread may add frames to it while other threads read it.
+ * @author ais523
+ */
+public class FrameIndex {
+    private long[] offsets; // offset of each frame's data in the bytestream
+    private int[] lengths;
+    private double[] timestamps; // relative to the first frame
+    private byte[] streams;
+    private int count;
+    private double initialTimestamp;
+    private final boolean multistream;
+
+    /**
+     * Creates a new, empty frame index.
+     * @param multistream Whether the frames come from a multistream ttyrec
+     * (with a stream byte after each header), rather than a regular ttyrec.
+     */
+    public FrameIndex(boolean multistream) {
+        offsets = new long[1024];
+        lengths = new int[1024];
+        timestamps = new double[1024];
+        streams = new byte[1024];
+        count = 0;
+        this.multistream = multistream;
+    }
+
+    /**
+     * Adds a frame to the end of the index.
+     * @param offset The index within the bytestream of the first byte of the
+     * frame's data (i.e. just after the frame's header).
+     * @param length The number of bytes of data in the frame.
+     * @param timestamp The timestamp of the frame, in seconds, as given in the
+     * frame's header.
+     * @param stream The stream number of the frame.
+     */
+    public synchronized void addFrame(long offset, int length,
+                                      double timestamp, int stream) {
+        if (count == offsets.length) {
+            int newCapacity = count * 2;
+            offsets = Arrays.copyOf(offsets, newCapacity);
+            lengths = Arrays.copyOf(lengths, newCapacity);
+            timestamps = Arrays.copyOf(timestamps, newCapacity);
+            streams = Arrays.copyOf(streams, newCapacity);
+        }
+        if (count == 0) initialTimestamp = timestamp;
+        offsets[count] = offset;
+        lengths[count] = length;
+        timestamps[count] = timestamp - initialTimestamp;
+        streams[count] = (byte) stream;
+        count++;
+    }
+
+    /**
+     * Returns whether this index describes a multistream ttyrec.
+     * @return True for a multistream ttyrec, false for a regular ttyrec.
+     */
+    public boolean isMultistream() {
+        return multistream;
+    }
+
+    /**
+     * Returns the number of frames in the index.
+     * @return The number of frames indexed so far.
+     */
+    public synchronized int getFrameCount() {
+        return count;
+    }
+
+    /**
+     * Returns the length of time between the first and last indexed frames.
+     * @return The length of the indexed part of the ttyrec, in seconds.
+     */
+    public synchronized double getLength() {
+        return count == 0 ? 0 : timestamps[count - 1];
+    }
+
+    /**
+     * Returns the timestamp of the first frame in the index.
+     * @return The timestamp from the first frame's header, in seconds.
+     */
+    public synchronized double getInitialTimestamp() {
+        return initialTimestamp;
+    }
+
+    /**
+     * Returns the index within the bytestream at which a frame's data starts.
+     * @param frame The frame number to look up.
+     * @return The offset of the frame's data.
+     */
+    public synchronized long getOffset(int frame) {
+        checkFrame(frame);
+        return offsets[frame];
+    }
+
+    /**
+     * Returns the number of bytes of data in a frame.
+     * @param frame The frame number to look up.
+     * @return The length of the frame's data.
+     */
+    public synchronized int getFrameLength(int frame) {
+        checkFrame(frame);
+        return lengths[frame];
+    }
+
+    /**
+     * Returns the timestamp of a frame, relative to the first frame.
+     * @param frame The frame number to look up.
+     * @return The number of seconds between the first frame and this frame.
+     */
+    public synchronized double getRelativeTimestamp(int frame) {
+        checkFrame(frame);
+        return timestamps[frame];
+    }
+
+    /**
+     * Returns the stream number of a frame.
+     * @param frame The frame number to look up.
+     * @return The frame's stream number.
+     */
+    public synchronized int getStream(int frame) {
+        checkFrame(frame);
+        return streams[frame];
+    }
+
+    /**
+     * Gets the frame at (or before, if no frame is exactly at) the given time,
+     * measured relative to the start of the recording.
+     * @param time The time in seconds.
+     * @return The frame number at or before the given time, or -1 if the
+     * index is empty or the time is before the first frame.
+     */
+    public synchronized int getFrameIndexAtRelativeTime(double time) {
+        int lo = 0;
+        int hi = count - 1;
+        int found = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (timestamps[mid] <= time) {
+                found = mid;
+                lo = mid + 1;
+            } else hi = mid - 1;
+        }
+        return found;
+    }
+
+    private void checkFrame(int frame) {
+        if (frame < 0 || frame >= count)
+            throw new IndexOutOfBoundsException("Frame " + frame +
+                    " is not in the index");
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package jettyplay;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Holds pre-rendered images of characters, one character cell in size, so
+ * that a VDURenderer can draw a character by copying an image rather than
+ * by laying out text. Each combination of character, boldness, foreground
+ * color and background color is rendered at most once (for as long as it
+ * stays in the atlas); the font, cell size and antialiasing type are the
+ * same for every image, and changing any of them empties the atlas.
+ * <p>
+ * Characters that don't fit exactly into one cell (e.g. because they come
+ * from a fallback font with a different width) aren't held in the atlas,
+ * because copying a cell-sized image would cut them off; the renderer draws
+ * those as text, as before.
+ * @author ais523
+ * @see VDURenderer
+ */
+class GlyphAtlas {
+    private static class Key {
+        char ch;
+        boolean bold;
+        int fg;
+        int bg;
+        Key(char ch, boolean bold, int fg, int bg) {
+            this.ch = ch;
+            this.bold = bold;
+            this.fg = fg;
+            this.bg = bg;
+        }
+        @Override
+        public int hashCode() {
+            return ((ch * 31 + fg) * 31 + bg) * 2 + (bold ? 1 : 0);
+        }
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key k = (Key) o;
+            return ch == k.ch && bold == k.bold && fg == k.fg && bg == k.bg;
+        }
+    }
+
+    /* The most images held at once. A screen rarely uses more than a few
+     * hundred, so this only matters for very colourful recordings. */
+    private static final int MAX_GLYPHS = 4096;
+    /* Values in fits[]. */
+    private static final byte FIT_UNKNOWN = 0;
+    private static final byte FIT_YES = 1;
+    private static final byte FIT_NO = 2;
+
+    private Font plainFont = null;
+    private Font boldFont = null;
+    private int cellWidth = 0;
+    private int cellHeight = 0;
+    private int descent = 0;
+    private Object textAntialiasingType = null;
+    private FontMetrics plainMetrics = null;
+    private FontMetrics boldMetrics = null;
+    // Whether each character fits in a cell, in the plain and bold fonts.
+    private byte[][] fits = new byte[2][];
+    // In least recently used order.
+    private final LinkedHashMap<Key, BufferedImage> glyphs =
+            new LinkedHashMap<Key, BufferedImage>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(
+                Map.Entry<Key, BufferedImage> eldest) {
+            return size() > MAX_GLYPHS;
+        }
+    };
+    // Used to look up glyphs without creating a new key each time.
+    private final Key probe = new Key(' ', false, 0, 0);
+
+    /**
+     * Sets the fonts and cell size that images are rendered with. If any of
+     * them are different from last time, the atlas is emptied.
+     * @param plainFont The font for non-bold characters.
+     * @param boldFont The font for bold characters.
+     * @param cellWidth The width of a character cell, in pixels.
+     * @param cellHeight The height of a character cell, in pixels.
+     * @param descent How far the baseline is from the bottom of the cell.
+     * @param textAntialiasingType A value for the rendering hint
+     * java.awt.RenderingHints.KEY_TEXT_ANTIALIASING.
+     * @return Whether anything changed (and so the atlas was emptied).
+     */
+    boolean configure(Font plainFont, Font boldFont, int cellWidth,
+                   int cellHeight, int descent, Object textAntialiasingType) {
+        if (plainFont.equals(this.plainFont) && boldFont.equals(this.boldFont)
+                && cellWidth == this.cellWidth
+                && cellHeight == this.cellHeight && descent == this.descent
+                && textAntialiasingType == this.textAntialiasingType) {
+            return false;
+        }
+        this.plainFont = plainFont;
+        this.boldFont = boldFont;
+        this.cellWidth = cellWidth;
+        this.cellHeight = cellHeight;
+        this.descent = descent;
+        this.textAntialiasingType = textAntialiasingType;
+        glyphs.clear();
+        fits = new byte[2][];
+        Graphics2D g = createGraphics(new BufferedImage(
+                1, 1, BufferedImage.TYPE_INT_RGB));
+        plainMetrics = g.getFontMetrics(plainFont);
+        boldMetrics = g.getFontMetrics(boldFont);
+        g.dispose();
+        return true;
+    }
+
+    /**
+     * Gets the image of a character cell.
+     * @param ch The character in the cell.
+     * @param bold Whether the character is drawn in the bold font.
+     * @param fg The foreground color, as an RGB value.
+     * @param bg The background color, as an RGB value.
+     * @return An image of the cell, of type TYPE_INT_RGB, or null if the
+     * character doesn't fit into one cell, and so should be drawn some
+     * other way.
+     */
+    BufferedImage getGlyph(char ch, boolean bold, int fg, int bg) {
+        if (!fits(ch, bold)) return null;
+        probe.ch = ch;
+        probe.bold = bold;
+        probe.fg = fg;
+        probe.bg = bg;
+        BufferedImage glyph = glyphs.get(probe);
+        if (glyph == null) {
+            glyph = renderGlyph(ch, bold, fg, bg);
+            glyphs.put(new Key(ch, bold, fg, bg), glyph);
+        }
+        return glyph;
+    }
+
+    /**
+     * Renders the image of a character cell, without using or adding to the
+     * atlas. Unlike getGlyph(), this works even for characters that don't
+     * fit into one cell; they're cut off at the edges of the cell.
+     * @param ch The character in the cell.
+     * @param bold Whether the character is drawn in the bold font.
+     * @param fg The foreground color, as an RGB value.
+     * @param bg The background color, as an RGB value.
+     * @return An image of the cell, of type TYPE_INT_RGB.
+     */
+    BufferedImage renderGlyph(char ch, boolean bold, int fg, int bg) {
+        BufferedImage glyph = new BufferedImage(cellWidth, cellHeight,
+                                                BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = createGraphics(glyph);
+        g.setColor(new Color(bg));
+        g.fillRect(0, 0, cellWidth, cellHeight);
+        g.setColor(new Color(fg));
+        g.setFont(bold ? boldFont : plainFont);
+        g.drawChars(new char[]{ch}, 0, 1, 0, cellHeight - descent);
+        g.dispose();
+        return glyph;
+    }
+
+    private boolean fits(char ch, boolean bold) {
+        int style = bold ? 1 : 0;
+        if (fits[style] == null) {
+            fits[style] = new byte[Character.MAX_VALUE + 1];
+        }
+        byte fit = fits[style][ch];
+        if (fit == FIT_UNKNOWN) {
+            Font font = bold ? boldFont : plainFont;
+            FontMetrics metrics = bold ? boldMetrics : plainMetrics;
+            // Surrogates only make sense as part of a pair, which can't be
+            // drawn one char at a time.
+            fit = !Character.isSurrogate(ch) && font.canDisplay(ch)
+                    && metrics.charWidth(ch) == cellWidth ? FIT_YES : FIT_NO;
+            fits[style][ch] = fit;
+        }
+        return fit == FIT_YES;
+    }
+
+    private Graphics2D createGraphics(BufferedImage image) {
+        Graphics2D g = image.createGraphics();
+        if (textAntialiasingType != null) {
+            g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING,
+                               textAntialiasingType);
+        }
+        return g;
+    }
+}
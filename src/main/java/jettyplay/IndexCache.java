@@ -0,0 +1,372 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package jettyplay;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * The results of analyzing a ttyrec file, saved to disk so that they can be
+ * reused the next time the same file is opened. An entry records the input
+ * format and file type of the ttyrec, which encodings it could be in, and
+ * whether it contains autoresize information; for uncompressed ttyrecs, it
+ * also records where each frame is in the file, and when it happens. This
+ * means that an analyzer can rebuild the frames from the cache without
+ * having to look at the data in them.
+ * <p>
+ * Entries are stored in a directory in the user's home directory, one file
+ * per recording, and are keyed on the URI, size and modification time of
+ * the file; if any of those change, the entry is ignored. The directory is
+ * kept below a fixed size by deleting the entries that were least recently
+ * used whenever a new entry is saved. The cache is purely an optimization,
+ * so errors reading or writing it are ignored, and it can be turned off
+ * altogether with setEnabled().
+ * @author ais523
+ */
+public class IndexCache {
+    private static final int MAGIC = 0x4a504958; // "JPIX"
+    private static final int VERSION = 1;
+    private static final long MAX_DIRECTORY_SIZE = 64L * 1024 * 1024;
+
+    private static volatile boolean enabled = true;
+
+    private final TtyrecAnalyzer.InputFormat format;
+    private final Ttyrec.FileType fileType;
+    private final boolean[] encodingPossible;
+    private final boolean autoResizeRangeInformation;
+    private final double initialTimestamp;
+    // These are null if the frames weren't cached.
+    private final long[] offsets;
+    private final int[] lengths;
+    private final double[] timestamps; // relative to initialTimestamp
+    private final byte[] streams;
+    private final byte[] unicodeChopEndings;
+
+    private IndexCache(TtyrecAnalyzer.InputFormat format,
+                       Ttyrec.FileType fileType, boolean[] encodingPossible,
+                       boolean autoResizeRangeInformation,
+                       double initialTimestamp, long[] offsets, int[] lengths,
+                       double[] timestamps, byte[] streams,
+                       byte[] unicodeChopEndings) {
+        this.format = format;
+        this.fileType = fileType;
+        this.encodingPossible = encodingPossible;
+        this.autoResizeRangeInformation = autoResizeRangeInformation;
+        this.initialTimestamp = initialTimestamp;
+        this.offsets = offsets;
+        this.lengths = lengths;
+        this.timestamps = timestamps;
+        this.streams = streams;
+        this.unicodeChopEndings = unicodeChopEndings;
+    }
+
+    /**
+     * Returns the directory in which cache entries are stored.
+     * @return The cache directory. It might not exist yet.
+     */
+    public static File getCacheDirectory() {
+        return new File(System.getProperty("user.home"),
+                ".jettyplay" + File.separator + "index");
+    }
+
+    /**
+     * Sets whether the cache is used. While it's disabled, nothing is loaded
+     * from or saved to it, but existing entries are left alone.
+     * @param enabled Whether to use the cache.
+     */
+    public static void setEnabled(boolean enabled) {
+        IndexCache.enabled = enabled;
+    }
+
+    /**
+     * Returns whether the cache is used.
+     * @return Whether entries are loaded and saved.
+     * @see #setEnabled(boolean)
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    private static File entryFile(URI uri) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            byte[] digest = md.digest(
+                    uri.toString().getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest)
+                sb.append(String.format("%02x", b & 0xff));
+            return new File(getCacheDirectory(), sb.toString());
+        } catch (NoSuchAlgorithmException ex) {
+            // Every Java implementation must support SHA-1.
+            throw new Error(ex.getMessage());
+        }
+    }
+
+    /**
+     * Loads the cache entry for a file, if there's an up-to-date one.
+     * @param file The file whose entry should be loaded.
+     * @param uri The URI that the file was opened from.
+     * @return The cache entry, or null if there isn't one, or if the file
+     * has changed since the entry was saved, or if the cache is disabled.
+     */
+    public static IndexCache load(File file, URI uri) {
+        if (!enabled) return null;
+        File entry = entryFile(uri);
+        if (!entry.isFile()) return null;
+        // Mark the entry as recently used, so that it isn't pruned.
+        entry.setLastModified(System.currentTimeMillis());
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(entry)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) return null;
+            if (!in.readUTF().equals(uri.toString()) ||
+                    in.readLong() != file.length() ||
+                    in.readLong() != file.lastModified())
+                return null;
+            TtyrecAnalyzer.InputFormat format =
+                    TtyrecAnalyzer.InputFormat.valueOf(in.readUTF());
+            Ttyrec.FileType fileType = Ttyrec.FileType.valueOf(in.readUTF());
+            Ttyrec.Encoding[] encodings = Ttyrec.Encoding.values();
+            boolean[] encodingPossible = new boolean[encodings.length];
+            for (int i = 0; i < encodings.length; i++)
+                encodingPossible[i] = in.readBoolean();
+            boolean autoResize = in.readBoolean();
+            double initialTimestamp = in.readDouble();
+            int frameCount = in.readInt();
+            if (frameCount < 0)
+                return new IndexCache(format, fileType, encodingPossible,
+                        autoResize, initialTimestamp,
+                        null, null, null, null, null);
+            long[] offsets = new long[frameCount];
+            int[] lengths = new int[frameCount];
+            double[] timestamps = new double[frameCount];
+            byte[] streams = new byte[frameCount];
+            byte[] chops = new byte[frameCount];
+            for (int i = 0; i < frameCount; i++) {
+                offsets[i] = in.readLong();
+                lengths[i] = in.readInt();
+                timestamps[i] = in.readDouble();
+                streams[i] = in.readByte();
+                chops[i] = in.readByte();
+            }
+            return new IndexCache(format, fileType, encodingPossible,
+                    autoResize, initialTimestamp,
+                    offsets, lengths, timestamps, streams, chops);
+        } catch (IOException | IllegalArgumentException ex) {
+            // A missing, truncated or corrupted entry; just reanalyze.
+            return null;
+        }
+    }
+
+    /**
+     * Saves the results of analyzing a file into the cache. Nothing is saved
+     * unless every frame of the ttyrec was found by the given analyzer, or
+     * if the cache is disabled. If the cache directory becomes too large as
+     * a result, the least recently used entries are deleted.
+     * @param file The file that was analyzed.
+     * @param uri The URI that the file was opened from.
+     * @param rec The ttyrec containing the results of the analysis.
+     * @param format The input format that the analyzer used.
+     * @param analyzerSeqNumber The sequence number of the analyzer.
+     */
+    public static void save(File file, URI uri, Ttyrec rec,
+                            TtyrecAnalyzer.InputFormat format,
+                            int analyzerSeqNumber) {
+        if (!enabled) return;
+        int frameCount = rec.getFrameCount();
+        boolean framesCached = true;
+        for (int i = 0; i < frameCount; i++) {
+            TtyrecFrame f = rec.getFrameAtIndex(i);
+            if (f.getAnalyzerSeqNumber() != analyzerSeqNumber) return;
+            if (!f.isInBytestream()) framesCached = false;
+        }
+        File entry = entryFile(uri);
+        File temp = new File(entry.getPath() + ".tmp");
+        getCacheDirectory().mkdirs();
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(uri.toString());
+            out.writeLong(file.length());
+            out.writeLong(file.lastModified());
+            out.writeUTF(format.name());
+            out.writeUTF(rec.getFileType().name());
+            for (Ttyrec.Encoding e : Ttyrec.Encoding.values())
+                out.writeBoolean(rec.isEncodingPossible(e));
+            out.writeBoolean(rec.containsAutoResizeRangeInformation(
+                    analyzerSeqNumber, -1));
+            out.writeDouble(rec.getInitialTimestamp());
+            out.writeInt(framesCached ? frameCount : -1);
+            if (framesCached) {
+                for (int i = 0; i < frameCount; i++) {
+                    TtyrecFrame f = rec.getFrameAtIndex(i);
+                    out.writeLong(f.getFrameOffset());
+                    out.writeInt(f.getFrameLength());
+                    out.writeDouble(f.getRelativeTimestamp());
+                    out.writeByte(f.getStream());
+                    out.writeByte(f.getUnicodeChopEnding());
+                }
+            }
+        } catch (IOException ex) {
+            temp.delete();
+            return;
+        }
+        entry.delete();
+        if (!temp.renameTo(entry)) temp.delete();
+        prune(entry);
+    }
+
+    /* Deletes entries, oldest first, until the cache directory is no larger
+     * than MAX_DIRECTORY_SIZE; the entry just saved is kept regardless. */
+    private static void prune(File keep) {
+        File[] entries = getCacheDirectory().listFiles();
+        if (entries == null) return;
+        final long[] modified = new long[entries.length];
+        long total = 0;
+        for (int i = 0; i < entries.length; i++) {
+            total += entries[i].length();
+        }
+        if (total <= MAX_DIRECTORY_SIZE) return;
+        // The times are read once, so that the sort isn't confused by them
+        // changing underneath it.
+        Integer[] order = new Integer[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            modified[i] = entries[i].lastModified();
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Long.compare(modified[a], modified[b]);
+            }
+        });
+        for (Integer i : order) {
+            if (total <= MAX_DIRECTORY_SIZE) break;
+            if (entries[i].equals(keep)) continue;
+            long length = entries[i].length();
+            if (entries[i].delete()) total -= length;
+        }
+    }
+
+    /**
+     * Returns the input format the ttyrec was found to be in.
+     * @return The input format.
+     */
+    public TtyrecAnalyzer.InputFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * Returns the file type the ttyrec was found to be.
+     * @return The file type.
+     */
+    public Ttyrec.FileType getFileType() {
+        return fileType;
+    }
+
+    /**
+     * Returns whether the ttyrec could be in the given encoding, as far as
+     * the analysis could tell.
+     * @param e The encoding to check.
+     * @return False if it was proved that the ttyrec isn't in the encoding.
+     */
+    public boolean isEncodingPossible(Ttyrec.Encoding e) {
+        return encodingPossible[e.ordinal()];
+    }
+
+    /**
+     * Returns whether the ttyrec was found to contain autoresize-range
+     * information.
+     * @return Whether the ttyrec contains autoresize-range information.
+     * @see Ttyrec#containsAutoResizeRangeInformation(int, int)
+     */
+    public boolean containsAutoResizeRangeInformation() {
+        return autoResizeRangeInformation;
+    }
+
+    /**
+     * Returns the timestamp of the first frame of the ttyrec.
+     * @return The initial timestamp.
+     * @see Ttyrec#getInitialTimestamp()
+     */
+    public double getInitialTimestamp() {
+        return initialTimestamp;
+    }
+
+    /**
+     * Returns whether the positions of the frames were cached. This is only
+     * the case for uncompressed input.
+     * @return Whether the frame table can be used.
+     */
+    public boolean hasFrames() {
+        return offsets != null;
+    }
+
+    /**
+     * Returns the number of frames in the frame table.
+     * @return The number of frames, or 0 if they weren't cached.
+     */
+    public int getFrameCount() {
+        return offsets == null ? 0 : offsets.length;
+    }
+
+    /**
+     * Returns the index within the file at which a frame's data starts.
+     * @param frame The frame number.
+     * @return The frame's offset.
+     */
+    public long getOffset(int frame) {
+        return offsets[frame];
+    }
+
+    /**
+     * Returns the number of bytes of data in a frame.
+     * @param frame The frame number.
+     * @return The frame's length.
+     */
+    public int getFrameLength(int frame) {
+        return lengths[frame];
+    }
+
+    /**
+     * Returns the timestamp of a frame, relative to the first frame.
+     * @param frame The frame number.
+     * @return The frame's relative timestamp.
+     */
+    public double getRelativeTimestamp(int frame) {
+        return timestamps[frame];
+    }
+
+    /**
+     * Returns the stream number of a frame.
+     * @param frame The frame number.
+     * @return The frame's stream.
+     */
+    public int getStream(int frame) {
+        return streams[frame];
+    }
+
+    /**
+     * Returns the number of bytes that must be chopped off the end of a frame
+     * to decode it as UTF-8.
+     * @param frame The frame number.
+     * @return The frame's Unicode chop ending.
+     */
+    public int getUnicodeChopEnding(int frame) {
+        return unicodeChopEndings[frame];
+    }
+}
@@ -5,6 +5,7 @@
 
 package jettyplay;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.SocketTimeoutException;
@@ -19,7 +20,8 @@ import java.util.Date;
  */
 class InputStreamTtyrecSource extends TtyrecSource {
     private final InputStreamable iStream;
-    private boolean lengthKnown;
+    private volatile boolean lengthKnown;
+    private static final int MAX_CHUNK_SIZE = 1 << 20;
 
     public InputStreamTtyrecSource(InputStreamable iStream) {
         this.iStream = iStream;
@@ -34,13 +36,16 @@ class InputStreamTtyrecSource extends TtyrecSource {
             if (!iStream.isReadable()) throw new IOException("Unreadable file");
             InputStream i = iStream.getInputStream();
             if (iStream.mustBeStreamable()) getTtyrec().setIsStreaming(true);
-            int bytesRead = 0;
+            long bytesRead = 0;
             for(;;) {
-                int l = i.available();
-                if (l == 0) l = (int) (iStream.getLength() - bytesRead);
+                long l = i.available();
+                if (l == 0) l = iStream.getLength() - bytesRead;
                 if (l < 0) l = 10000; // a sensible chunk size
-                byte[] b = new byte[l];
-                int obr = bytesRead;
+                // Don't try to read a huge file in one go; the bytestream
+                // handles lots of medium-sized chunks perfectly well.
+                if (l > MAX_CHUNK_SIZE) l = MAX_CHUNK_SIZE;
+                byte[] b = new byte[(int) l];
+                long obr = bytesRead;
                 try {
                     if (b.length > 0) bytesRead += i.read(b);
                 } catch(SocketTimeoutException s) {
@@ -66,11 +71,9 @@ class InputStreamTtyrecSource extends TtyrecSource {
                 // streaming. TODO: Should it be?)
                 if (reachedEOF && iStream.couldBeStreamable())
                     getTtyrec().setIsStreaming(true);
-                b = Arrays.copyOf(b, bytesRead-obr);
+                if (bytesRead - obr != b.length)
+                    b = Arrays.copyOf(b, (int) (bytesRead - obr));
                 bytestream.appendArray(b);
-                synchronized(bytestream) {
-                    bytestream.notifyAll();
-                }
             }
         } catch (IOException ex) {
             // TODO: Show in the GUI
@@ -80,6 +83,7 @@ class InputStreamTtyrecSource extends TtyrecSource {
             return;
         }
         lengthKnown = true;
+        getBytestream().markComplete();
         System.out.println("Source ending...");
     }
 
@@ -93,6 +97,15 @@ class InputStreamTtyrecSource extends TtyrecSource {
         return iStream.getURI();
     }
 
+    @Override
+    protected File getFile() {
+        if (iStream instanceof InputStreamableFileWrapper) {
+            File file = ((InputStreamableFileWrapper) iStream).getFile();
+            if (file.isFile()) return file;
+        }
+        return null;
+    }
+
     @Override
     protected void cancelIO() {
         try {
@@ -23,6 +23,14 @@ public class InputStreamableFileWrapper implements InputStreamable {
         this.file = file;
     }
 
+    /**
+     * Gets the file that this InputStreamable reads from.
+     * @return The file.
+     */
+    public File getFile() {
+        return file;
+    }
+
     public InputStream getInputStream() throws FileNotFoundException {
         stream = new FileInputStream(file);
         return stream;
@@ -356,6 +356,13 @@ public class MainFrame extends JFrame
                 openURLMenuItemActionPerformed(evt);
             }
         });
+        indexCacheMenuItem = uiBuilder.addJCheckBoxMenuItem(fileMenu, 'r',
+                "Remember Analysis", null, false, new ChangeListener() {
+            public void stateChanged(ChangeEvent evt) {
+                indexCacheMenuItemStateChanged(evt);
+            }
+        });
+        indexCacheMenuItem.setSelected(IndexCache.isEnabled());
         uiBuilder.addJSeparator(fileMenu);
         uiBuilder.addJMenuItem(fileMenu, 'v', "Save as Video...", null,
                 true, new ActionListener() {
@@ -804,6 +811,15 @@ public class MainFrame extends JFrame
         setTimeLabels();
         int i = getCurrentTtyrec().getFrameIndexAtRelativeTime(
                 (double) timeSlider.getValue() / timeScaling);
+        // If the slider's beyond the analyzed frames, but the frame there is
+        // known from the index, jump to it once it's been analyzed.
+        FrameIndex index = getCurrentTtyrec().getFrameIndex();
+        if (canUpdateSelectedFrame && index != null) {
+            int j = index.getFrameIndexAtRelativeTime(
+                    (double) timeSlider.getValue() / timeScaling);
+            getCurrentSource().setWantedFrame(
+                    j >= getCurrentTtyrec().getFrameCount() ? j : -1);
+        }
         if (canUpdateSelectedFrame)
             goToSpecificFrame(i, false);
         else
@@ -867,6 +883,10 @@ public class MainFrame extends JFrame
         updateSidebar();
     }
 
+    private void indexCacheMenuItemStateChanged(ChangeEvent evt) {
+        IndexCache.setEnabled(indexCacheMenuItem.isSelected());
+    }
+
     private void autoskipMenuItemStateChanged(ChangeEvent evt) {
         autoskipButton.setSelected(autoskipMenuItem.isSelected());
         updateSidebar();
@@ -999,8 +1019,11 @@ public class MainFrame extends JFrame
         if (getCurrentTtyrec() != null) vdub = getCurrentFrame().getTerminalState();
         if (vdub == null) vdub = new vt320();
         StringBuilder sb = new StringBuilder();
-        for (char[] s: vdub.charArray) {
-            sb.append(s);
+        char[] chars = new char[vdub.getColumns()];
+        long[] attributes = new long[vdub.getColumns()];
+        for (int i = 0; i < vdub.getRowCount(); i++) {
+            vdub.copyRow(i, chars, attributes, chars.length);
+            sb.append(chars);
             sb.append('\n');
         }
         setClipboardContents(new StringSelection(sb.toString()));
@@ -1243,6 +1266,11 @@ public class MainFrame extends JFrame
             timeSliderStateChanged(null);
         }
         if (frame != previousFrameIndex) {
+            // If the user wants a frame that's not analyzed yet, that's the
+            // one to decode first.
+            getCurrentSource().seekTo(Math.max(frame,
+                    getCurrentTtyrec().getWantedFrame()));
+            TerminalStateCache.setPlaybackCursor(f);
             replayTerminal.setVDUBuffer(f.getTerminalState());
             f.setDirty(false);
         }
@@ -1298,13 +1326,21 @@ public class MainFrame extends JFrame
         timeSlider.setValue(0);
         timeSlider.setMaximum(1);
         timeSlider.repaint();
+        TerminalStateCache.clear();
         VDUBuffer.resetCaches();
         updateSidebar();
     }
 
     private void openSourceFromInputStreamable(InputStreamable iStream) {
         unloadFile();
-        currentSource = new InputStreamTtyrecSource(iStream);
+        // Local files can be mapped into memory rather than read onto the
+        // heap; this only works for regular files, not pipes or devices.
+        if (iStream instanceof InputStreamableFileWrapper &&
+                ((InputStreamableFileWrapper) iStream).getFile().isFile())
+            currentSource = new MappedFileTtyrecSource(
+                    ((InputStreamableFileWrapper) iStream).getFile());
+        else
+            currentSource = new InputStreamTtyrecSource(iStream);
         getCurrentSource().completeUnpause();
         getCurrentSource().addDecodeListener(new ProgressListener() {
             public void progressMade() {
@@ -1353,6 +1389,7 @@ public class MainFrame extends JFrame
     private JRadioButtonMenuItem fixedTerminalSizeMenuItem;
     private JCheckBoxMenuItem fullScreenMenuItem;
     private JRadioButtonMenuItem ibmEncodingMenuItem;
+    private JCheckBoxMenuItem indexCacheMenuItem;
     private JRadioButtonMenuItem latin1EncodingMenuItem;
     private JPanel mainPanel;
     private JToolBar mainToolbar;
@@ -1502,12 +1539,12 @@ public class MainFrame extends JFrame
 
     private void setSidebarPropertyMessage() {
         if (getCurrentTtyrec() != null) {
-            AttributedString[] as = new AttributedString[7];
+            AttributedString[] as = new AttributedString[8];
             as[0] = new AttributedString(playing ? "Playing" : "Paused");
             as[0].addAttribute(TextAttribute.WEIGHT,TextAttribute.WEIGHT_BOLD);
             double time = (double)timeSlider.getValue() / timeScaling;
             as[1] = new AttributedString("Frame: " + (previousFrameIndex+1) +
-                        " / " + getCurrentTtyrec().getFrameCount());
+                        " / " + getCurrentTtyrec().getKnownFrameCount());
             as[1].addAttribute(TextAttribute.WEIGHT,TextAttribute.WEIGHT_BOLD,0,5);
             as[2] = new AttributedString("Time: " + timeToString(time) +
                         " / " + timeToString(getCurrentTtyrec().getLength()));
@@ -1515,11 +1552,13 @@ public class MainFrame extends JFrame
             as[3] = new AttributedString("Speed: x" + speedSpinner.getValue() +
                         (autoskipButton.isSelected() ? " log" : ""));
             as[3].addAttribute(TextAttribute.WEIGHT,TextAttribute.WEIGHT_BOLD,0,5);
-            try {
-                as[4] = new AttributedString("Size: " +
-                        getCurrentFrame().getTerminalState().getColumns() +
-                        " x " + getCurrentFrame().getTerminalState().getRows());
-            } catch (Exception e) {
+            // The frame might not be decoded yet, or its state might be
+            // impossible to recreate right now.
+            vt320 state = getCurrentFrame().getTerminalState();
+            if (state != null) {
+                as[4] = new AttributedString("Size: " + state.getColumns() +
+                        " x " + state.getRows());
+            } else {
                 as[4] = new AttributedString("Size: ? x ?");
             }
             as[4].addAttribute(TextAttribute.WEIGHT,TextAttribute.WEIGHT_BOLD,0,5);
@@ -1527,12 +1566,16 @@ public class MainFrame extends JFrame
                     ((Runtime.getRuntime().totalMemory()) - Runtime.getRuntime().freeMemory()) +
                         " / " + Runtime.getRuntime().maxMemory());
             as[5].addAttribute(TextAttribute.WEIGHT,TextAttribute.WEIGHT_BOLD,0,11);
+            as[6] = new AttributedString("Decoded frames: " +
+                    TerminalStateCache.getMemoryUsed() +
+                    " / " + TerminalStateCache.getBudget());
+            as[6].addAttribute(TextAttribute.WEIGHT,TextAttribute.WEIGHT_BOLD,0,15);
             try {
-                as[6] = new AttributedString("URI: " + getCurrentSource().getURI().toString());
+                as[7] = new AttributedString("URI: " + getCurrentSource().getURI().toString());
             } catch (URISyntaxException ex) {
-                as[6] = new AttributedString("URI: unknown");
+                as[7] = new AttributedString("URI: unknown");
             }
-            as[6].addAttribute(TextAttribute.WEIGHT,TextAttribute.WEIGHT_BOLD,0,3);
+            as[7].addAttribute(TextAttribute.WEIGHT,TextAttribute.WEIGHT_BOLD,0,3);
             setSidebarPaneContents(as);
         } else {
             setSidebarPaneContents(new AttributedString[]
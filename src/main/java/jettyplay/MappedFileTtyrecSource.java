@@ -0,0 +1,117 @@
+package jettyplay;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.util.Date;
+
+/**
+ * A TtyrecSource that reads a local file by mapping it into memory, rather
+ * than by copying it onto the heap. The file is mapped in windows of a
+ * moderate size, each of which becomes one chunk of the bytestream; this
+ * means that the bytestream costs very little heap even for huge files,
+ * and that the analyzer reads directly from the operating system's page
+ * cache.
+ * <p>
+ * If the file grows while it's being viewed, the newly added tail of the
+ * file is mapped as one or more new windows, just as more data would be
+ * read from an InputStream. If it shrinks, the parts of the windows beyond
+ * its new end can't be read any more (trying would fault), so the
+ * bytestream is cut short to match, and reading stops with an error.
+ * @author ais523
+ */
+class MappedFileTtyrecSource extends TtyrecSource {
+    private final File file;
+    private volatile FileChannel channel;
+    private volatile boolean lengthKnown;
+    // Large enough that even huge files don't need many windows, small
+    // enough that a window can always find space in a 32-bit address space.
+    private static final int MAX_WINDOW_SIZE = 1 << 26;
+
+    /**
+     * Creates a new source that will read from the given file when started.
+     * @param file The file to read. This should be a regular file, rather
+     * than a pipe or a device, as other sorts of files can't be mapped.
+     */
+    public MappedFileTtyrecSource(File file) {
+        this.file = file;
+        lengthKnown = false;
+    }
+
+    @Override
+    public void run() {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            boolean reachedEOF = false;
+            ByteChunkList bytestream = getBytestream();
+            channel = raf.getChannel();
+            long bytesMapped = 0;
+            for(;;) {
+                long size = channel.size();
+                if (size < bytesMapped) {
+                    bytestream.truncate(size);
+                    throw new IOException(file + " was truncated while being read");
+                }
+                long l = size - bytesMapped;
+                if (interrupted()) throw new InterruptedException();
+                if (l <= 0) {
+                    reachedEOF = true;
+                    setReadEventHappened(true);
+                    Thread.sleep(100);
+                    continue;
+                }
+                if (l > MAX_WINDOW_SIZE) l = MAX_WINDOW_SIZE;
+                bytestream.appendBuffer(channel.map(
+                        FileChannel.MapMode.READ_ONLY, bytesMapped, l));
+                bytesMapped += l;
+                setReadEventHappened(true);
+                getTtyrec().setLastActivity(new Date());
+                getTtyrec().setLengthOffset(0);
+                // As with InputStreamTtyrecSource, a file that grows after
+                // we've seen its end must be a live recording.
+                if (reachedEOF)
+                    getTtyrec().setIsStreaming(true);
+            }
+        } catch (ClosedByInterruptException ex) {
+            System.out.println("Source ending via interruption...");
+            return;
+        } catch (IOException ex) {
+            // TODO: Show in the GUI
+            System.out.println("Input failed: "+ex.getMessage());
+        } catch (InterruptedException ex) {
+            System.out.println("Source ending via interruption...");
+            return;
+        }
+        lengthKnown = true;
+        getBytestream().markComplete();
+        System.out.println("Source ending...");
+    }
+
+    @Override
+    public boolean knownLength() {
+        return lengthKnown;
+    }
+
+    @Override
+    public URI getURI() throws URISyntaxException {
+        return file.getAbsoluteFile().toURI();
+    }
+
+    @Override
+    protected File getFile() {
+        return file;
+    }
+
+    @Override
+    protected void cancelIO() {
+        try {
+            // Existing mappings stay valid after the channel is closed.
+            if (channel != null) channel.close();
+        } catch (IOException ex) {
+            // If this goes wrong, it's probably shutting down anyway.
+        }
+    }
+}
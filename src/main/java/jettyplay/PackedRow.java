@@ -0,0 +1,86 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package jettyplay;
+
+/**
+ * A compact encoding for rows of a VDUBuffer, using one int per cell rather
+ * than a char and a long. This works for any row whose cells use only the
+ * default colours and the 16 standard palette colours, which is most rows
+ * of most recordings; rows that use other colours stay in the wide form.
+ * <p>
+ * Each cell is packed as the character in bits 0-15, the attribute flags
+ * (bold, underline, etc.) in bits 16-21, the foreground colour in bits
+ * 22-26 and the background colour in bits 27-31. Colours are stored the
+ * same way as in VDUBuffer's attributes (0 for the default, otherwise 1 more
+ * than the palette index).
+ * @author ais523
+ */
+public final class PackedRow {
+    private static final long FLAGS = 0x3f;
+    private static final int MAX_PACKED_COLOR = 16;
+
+    private PackedRow() {}
+
+    /**
+     * Packs a row, if it can be packed.
+     * @param chars The characters of the row.
+     * @param attributes The attributes of the row.
+     * @return The packed row, or null if some cell uses attributes that can't
+     * be packed.
+     */
+    public static int[] pack(char[] chars, long[] attributes) {
+        int[] packed = new int[chars.length];
+        for (int i = 0; i < chars.length; i++) {
+            long a = attributes[i];
+            if ((a & ~(FLAGS | VDUBuffer.COLOR)) != 0) return null;
+            long fg = (a & VDUBuffer.COLOR_FG) >> VDUBuffer.COLOR_FG_SHIFT;
+            long bg = (a & VDUBuffer.COLOR_BG) >> VDUBuffer.COLOR_BG_SHIFT;
+            if (fg > MAX_PACKED_COLOR || bg > MAX_PACKED_COLOR) return null;
+            packed[i] = chars[i] | (int) (a & FLAGS) << 16 |
+                        (int) fg << 22 | (int) bg << 27;
+        }
+        return packed;
+    }
+
+    /**
+     * Gets the character of a cell in a packed row.
+     * @param packed The packed row.
+     * @param i The column of the cell.
+     * @return The character in that cell.
+     */
+    public static char charAt(int[] packed, int i) {
+        return (char) packed[i];
+    }
+
+    /**
+     * Gets the attributes of a cell in a packed row.
+     * @param packed The packed row.
+     * @param i The column of the cell.
+     * @return The attributes of that cell, in the same form that VDUBuffer
+     * uses.
+     */
+    public static long attributesAt(int[] packed, int i) {
+        int p = packed[i];
+        return (p >>> 16 & FLAGS) |
+               (long) (p >>> 22 & 0x1f) << VDUBuffer.COLOR_FG_SHIFT |
+               (long) (p >>> 27 & 0x1f) << VDUBuffer.COLOR_BG_SHIFT;
+    }
+
+    /**
+     * Unpacks the start of a packed row into the wide form.
+     * @param packed The packed row.
+     * @param chars The array to store the characters in.
+     * @param attributes The array to store the attributes in.
+     * @param length The number of cells to unpack.
+     */
+    public static void unpack(int[] packed, char[] chars, long[] attributes,
+                              int length) {
+        for (int i = 0; i < length; i++) {
+            chars[i] = charAt(packed, i);
+            attributes[i] = attributesAt(packed, i);
+        }
+    }
+}
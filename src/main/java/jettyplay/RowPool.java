@@ -0,0 +1,178 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package jettyplay;
+
+import java.util.Arrays;
+
+/**
+ * An interning pool for the rows of read-only VDUBuffers. Many frames of a
+ * recording have rows in common (and the same rows tend to come back again
+ * and again), so storing only one copy of each distinct row saves a lot of
+ * memory.
+ * <p>
+ * A row is its characters together with their attributes; rows that can be
+ * packed (see PackedRow) are stored packed. Rows are found by a 64-bit hash
+ * of their contents, but are always compared in full, so two different
+ * rows are never merged even if their hashes collide. The pool
+ * has a fixed capacity; once it's full, rows are evicted using the clock
+ * algorithm, so rows that keep being reused stay in the pool. (An evicted
+ * row is still used by the buffers that share it; it just won't be shared
+ * with any more buffers.)
+ * @author ais523
+ */
+public class RowPool {
+
+    /**
+     * A row in the pool.
+     */
+    static final class Row {
+        // Either packed is null, or chars and attributes are.
+        final char[] chars;
+        final long[] attributes;
+        final int[] packed;
+        final long hash;
+        Row next; // next in the same bucket
+        boolean referenced; // for the clock algorithm
+        Row(char[] chars, long[] attributes, int[] packed, long hash) {
+            this.chars = chars;
+            this.attributes = attributes;
+            this.packed = packed;
+            this.hash = hash;
+        }
+        boolean contains(char[] chars, long[] attributes, int[] packed) {
+            if (packed != null) return Arrays.equals(this.packed, packed);
+            return this.packed == null && Arrays.equals(this.chars, chars) &&
+                   Arrays.equals(this.attributes, attributes);
+        }
+    }
+
+    private final Row[] buckets;
+    private final Row[] clock; // every row in the pool, in slot order
+    private int clockHand = 0;
+    private int size = 0;
+
+    /**
+     * Creates a new, empty row pool.
+     * @param capacity The maximum number of rows in the pool. This is rounded
+     * up to a power of 2.
+     */
+    public RowPool(int capacity) {
+        int c = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+        buckets = new Row[c];
+        clock = new Row[c];
+    }
+
+    /**
+     * Finds the pooled copy of a row, adding the row to the pool if it isn't
+     * there already. The row must not be modified afterwards, as it may be
+     * shared.
+     * @param chars The characters of the row.
+     * @param attributes The attributes of the row.
+     * @return A row with the same contents, whose arrays should be used in
+     * place of the given arrays. This is packed, if possible.
+     */
+    Row intern(char[] chars, long[] attributes) {
+        // Packing happens outside the lock, as it's the slow part.
+        int[] packed = PackedRow.pack(chars, attributes);
+        if (packed != null) {
+            chars = null;
+            attributes = null;
+        }
+        long hash = packed != null ? hash(packed) : hash(chars, attributes);
+        return intern(chars, attributes, packed, hash);
+    }
+
+    /* Does the work of intern(char[], long[]), given a row that's already
+     * been packed (if possible) and hashed. This is package-private so that
+     * the handling of hash collisions can be tested. */
+    synchronized Row intern(char[] chars, long[] attributes, int[] packed,
+                            long hash) {
+        int bucket = (int) hash & (buckets.length - 1);
+        for (Row r = buckets[bucket]; r != null; r = r.next) {
+            if (r.hash == hash && r.contains(chars, attributes, packed)) {
+                r.referenced = true;
+                return r;
+            }
+        }
+        Row r = new Row(chars, attributes, packed, hash);
+        if (size == clock.length) {
+            evictOne();
+        } else {
+            // The clock has no gaps until the pool is first full; after
+            // that, evictOne() leaves the gap at the hand.
+            clockHand = size;
+        }
+        clock[clockHand] = r;
+        clockHand = (clockHand + 1) & (clock.length - 1);
+        size++;
+        r.next = buckets[bucket];
+        buckets[bucket] = r;
+        return r;
+    }
+
+    /* Removes the first row the clock hand finds that hasn't been used
+     * since the hand last passed it, leaving the hand pointing at the gap. */
+    private void evictOne() {
+        while (clock[clockHand].referenced) {
+            clock[clockHand].referenced = false;
+            clockHand = (clockHand + 1) & (clock.length - 1);
+        }
+        Row victim = clock[clockHand];
+        int bucket = (int) victim.hash & (buckets.length - 1);
+        if (buckets[bucket] == victim) {
+            buckets[bucket] = victim.next;
+        } else {
+            Row r = buckets[bucket];
+            while (r.next != victim) r = r.next;
+            r.next = victim.next;
+        }
+        clock[clockHand] = null;
+        size--;
+    }
+
+    /**
+     * Returns the number of rows in the pool.
+     * @return The number of distinct rows currently pooled.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Empties the pool.
+     */
+    public synchronized void clear() {
+        Arrays.fill(buckets, null);
+        Arrays.fill(clock, null);
+        clockHand = 0;
+        size = 0;
+    }
+
+    /* A 64-bit FNV-1a hash of the row, with a final mix so that the low bits
+     * (which pick the bucket) depend on every input bit. */
+    private static long hash(char[] chars, long[] attributes) {
+        long h = 0xcbf29ce484222325L;
+        for (char c : chars)
+            h = (h ^ c) * 0x100000001b3L;
+        for (long a : attributes)
+            h = (h ^ a) * 0x100000001b3L;
+        return mix(h);
+    }
+
+    private static long hash(int[] packed) {
+        long h = 0xcbf29ce484222325L;
+        for (int p : packed)
+            h = (h ^ p) * 0x100000001b3L;
+        return mix(h);
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package jettyplay;
+
+/**
+ * Works out which cells of a terminal's screen have changed from one
+ * VDUBuffer to the next. A ScreenDiff remembers the screen it was last given
+ * (characters, attributes and cursor position), and compares each new buffer
+ * against that, cell by cell; rows whose identity hasn't changed are known to
+ * be the same without looking at their contents.
+ * <p>
+ * The result is a list of changes, one for each row that changed, in order
+ * from the top of the screen; each gives the range of columns from the first
+ * to the last cell of the row that changed. If the whole screen has to be
+ * regarded as changed (e.g. because its size changed), the diff is
+ * "complete", and there's no list. Only the screen is compared, not the
+ * scrollback; the cell the cursor is in counts as changed whenever the
+ * cursor moves into or out of it. Any control characters straight after a
+ * change count as changed too, as VDURenderer draws them differently
+ * depending on what comes before them.
+ * @author ais523
+ * @see VDURenderer
+ */
+class ScreenDiff {
+    private int width = -1;
+    private int height = -1;
+    // What the screen looked like at the last update.
+    private char[][] chars;
+    private long[][] attributes;
+    private Object[] identities;
+    private int cursorRow = -1;
+    private int cursorColumn = -1;
+    // The row being compared.
+    private char[] rowChars = new char[0];
+    private long[] rowAttributes = new long[0];
+    // The changes found at the last update.
+    private boolean complete = true;
+    private int changeCount = 0;
+    private int[] changedRows = new int[0];
+    private int[] firstColumns = new int[0];
+    private int[] endColumns = new int[0];
+
+    /**
+     * Forgets the screen that was last seen, so that the next update will be
+     * complete.
+     */
+    void reset() {
+        width = -1;
+        height = -1;
+        chars = null;
+        attributes = null;
+        identities = null;
+    }
+
+    /**
+     * Compares the screen of a buffer against the screen that was last seen,
+     * then remembers it for next time.
+     * @param buffer The buffer to compare.
+     * @return Whether anything changed.
+     */
+    boolean update(VDUBuffer buffer) {
+        int newCursorRow = buffer.screenBase + buffer.cursorY - buffer.windowBase;
+        int newCursorColumn = buffer.cursorX;
+        if (newCursorRow < 0 || newCursorRow >= buffer.height) {
+            newCursorRow = -1;
+            newCursorColumn = -1;
+        }
+        changeCount = 0;
+        if (buffer.width != width || buffer.height != height) {
+            width = buffer.width;
+            height = buffer.height;
+            chars = new char[height][width];
+            attributes = new long[height][width];
+            identities = new Object[height];
+            changedRows = new int[height];
+            firstColumns = new int[height];
+            endColumns = new int[height];
+            rowChars = new char[width];
+            rowAttributes = new long[width];
+            for (int l = 0; l < height; l++) {
+                buffer.copyRow(buffer.windowBase + l, chars[l], attributes[l],
+                               width);
+                identities[l] = buffer.getRowIdentity(buffer.windowBase + l);
+            }
+            cursorRow = newCursorRow;
+            cursorColumn = newCursorColumn;
+            complete = true;
+            return true;
+        }
+        complete = false;
+        for (int l = 0; l < height; l++) {
+            int first = width;
+            int end = 0;
+            Object identity = buffer.getRowIdentity(buffer.windowBase + l);
+            if (identity != identities[l]) {
+                identities[l] = identity;
+                buffer.copyRow(buffer.windowBase + l, rowChars, rowAttributes,
+                               width);
+                char[] oldChars = chars[l];
+                long[] oldAttributes = attributes[l];
+                for (int c = 0; c < width; c++) {
+                    if (rowChars[c] != oldChars[c]
+                            || rowAttributes[c] != oldAttributes[c]) {
+                        if (first == width) {
+                            first = c;
+                        }
+                        end = c + 1;
+                    }
+                }
+                // Keep the copy, and reuse the old row for the next copy.
+                chars[l] = rowChars;
+                attributes[l] = rowAttributes;
+                rowChars = oldChars;
+                rowAttributes = oldAttributes;
+            }
+            if (newCursorRow != cursorRow || newCursorColumn != cursorColumn) {
+                if (l == cursorRow) {
+                    first = Math.min(first, cursorColumn);
+                    end = Math.max(end, cursorColumn + 1);
+                }
+                if (l == newCursorRow) {
+                    first = Math.min(first, newCursorColumn);
+                    end = Math.max(end, newCursorColumn + 1);
+                }
+            }
+            if (first < end) {
+                while (end < width && chars[l][end] < ' ') {
+                    end++;
+                }
+                changedRows[changeCount] = l;
+                firstColumns[changeCount] = first;
+                endColumns[changeCount] = end;
+                changeCount++;
+            }
+        }
+        cursorRow = newCursorRow;
+        cursorColumn = newCursorColumn;
+        return changeCount > 0;
+    }
+
+    /**
+     * Returns whether the whole screen changed at the last update (rather
+     * than just the cells in the list of changes).
+     * @return True if the whole screen should be regarded as changed.
+     */
+    boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Returns how many rows changed at the last update. This is 0 if the
+     * update was complete.
+     * @return The number of changes in the list.
+     */
+    int getChangeCount() {
+        return complete ? 0 : changeCount;
+    }
+
+    /**
+     * Returns which row a change is on.
+     * @param i The index of the change in the list.
+     * @return The row of the screen, counting from 0 at the top.
+     */
+    int getChangedRow(int i) {
+        return changedRows[i];
+    }
+
+    /**
+     * Returns the first column that a change covers.
+     * @param i The index of the change in the list.
+     * @return The leftmost changed column of the row.
+     */
+    int getFirstColumn(int i) {
+        return firstColumns[i];
+    }
+
+    /**
+     * Returns the column after the last column that a change covers.
+     * @param i The index of the change in the list.
+     * @return One more than the rightmost changed column of the row.
+     */
+    int getEndColumn(int i) {
+        return endColumns[i];
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package jettyplay;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+
+/**
+ * Searches raw bytes for any of a fixed set of byte sequences, such as
+ * terminal control sequences. The search is done with an Aho-Corasick
+ * automaton, so each byte is looked at only once, however many sequences
+ * are being searched for; and the scanner remembers where it got to, so a
+ * sequence is found even if it's split between two calls to scan().
+ * @author ais523
+ */
+public class SequenceScanner {
+    /* transitions[state * 256 + b] is the state reached from state after
+     * reading byte b. State 0 is the start state. */
+    private final int[] transitions;
+    /* A bitmask of the sequences that end upon reaching each state. */
+    private final int[] matches;
+    private int state = 0;
+
+    /**
+     * Creates a new scanner that searches for the given sequences.
+     * @param sequences The sequences to search for; there can be at most 32,
+     * and none of them may be empty. They're given as strings of
+     * codepoints 0 to 255, each codepoint standing for one byte.
+     */
+    public SequenceScanner(String... sequences) {
+        if (sequences.length > 32)
+            throw new IllegalArgumentException("Too many sequences");
+        // Build a trie of the sequences.
+        List<int[]> children = new ArrayList<>();
+        List<Integer> matchList = new ArrayList<>();
+        children.add(newNode());
+        matchList.add(0);
+        for (int i = 0; i < sequences.length; i++) {
+            byte[] seq = sequences[i].getBytes(StandardCharsets.ISO_8859_1);
+            if (seq.length == 0)
+                throw new IllegalArgumentException("Empty sequence");
+            int node = 0;
+            for (byte b : seq) {
+                int c = b & 0xff;
+                if (children.get(node)[c] < 0) {
+                    children.get(node)[c] = children.size();
+                    children.add(newNode());
+                    matchList.add(0);
+                }
+                node = children.get(node)[c];
+            }
+            matchList.set(node, matchList.get(node) | 1 << i);
+        }
+        // Turn the trie into an automaton, breadth first, so that each
+        // node's failure transitions are known before its children's.
+        int count = children.size();
+        transitions = new int[count * 256];
+        matches = new int[count];
+        int[] fail = new int[count];
+        Queue<Integer> queue = new ArrayDeque<>();
+        for (int c = 0; c < 256; c++) {
+            int child = children.get(0)[c];
+            if (child < 0) child = 0;
+            else queue.add(child);
+            transitions[c] = child;
+        }
+        matches[0] = matchList.get(0);
+        while (!queue.isEmpty()) {
+            int node = queue.remove();
+            matches[node] = matchList.get(node) | matches[fail[node]];
+            for (int c = 0; c < 256; c++) {
+                int child = children.get(node)[c];
+                int failTo = transitions[fail[node] * 256 + c];
+                if (child < 0) {
+                    transitions[node * 256 + c] = failTo;
+                } else {
+                    fail[child] = failTo;
+                    transitions[node * 256 + c] = child;
+                    queue.add(child);
+                }
+            }
+        }
+    }
+
+    private static int[] newNode() {
+        int[] node = new int[256];
+        Arrays.fill(node, -1);
+        return node;
+    }
+
+    /**
+     * Scans more input, continuing from where the previous call left off.
+     * @param data An array containing the input.
+     * @param off The index in data at which the input starts.
+     * @param len The number of bytes of input.
+     * @return A bitmask of the sequences that ended within this input; bit
+     * i is set if the i'th sequence given to the constructor was found.
+     */
+    public int scan(byte[] data, int off, int len) {
+        int s = state;
+        int found = 0;
+        int end = off + len;
+        for (int i = off; i < end; i++) {
+            s = transitions[s * 256 + (data[i] & 0xff)];
+            found |= matches[s];
+        }
+        state = s;
+        return found;
+    }
+
+    /**
+     * Forgets any partial sequence seen so far, so that the next input is
+     * scanned as if it were the start of the input.
+     */
+    public void reset() {
+        state = 0;
+    }
+}
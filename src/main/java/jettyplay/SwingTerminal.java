@@ -31,6 +31,7 @@ import java.awt.Dimension;
 import java.awt.Font;
 import java.awt.Graphics;
 import java.awt.Insets;
+import java.awt.Rectangle;
 import javax.swing.JComponent;
 
 /**
@@ -76,7 +77,12 @@ public class SwingTerminal extends JComponent {
     public void setVDUBuffer(VDUBuffer buffer) {
         renderer.setVDUBuffer(buffer);
         setBounds(getX(), getY(), getWidth(), getHeight());
-        repaint();
+        // Only repaint the rows that changed; Swing merges the areas of
+        // repaints that happen before it gets round to painting.
+        Rectangle changed = renderer.getChangedArea(getWidth(), getHeight());
+        if (changed != null) {
+            repaint(changed);
+        }
     }
 
     public void setTextAntialiasingType(Object textAntialiasingType) {
@@ -181,6 +187,7 @@ public class SwingTerminal extends JComponent {
 
     public void setAllowBold(boolean bold) {
         renderer.setAllowBold(bold);
+        repaint();
     }
     
     /**
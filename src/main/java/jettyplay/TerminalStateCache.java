@@ -0,0 +1,181 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package jettyplay;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Holds the decoded terminal states of frames, within a memory budget. The
+ * only state that a ttyrec keeps for good is that of its first frame; the
+ * state of any other frame is stored here, and if it's been evicted, it's
+ * worked out again by replaying frames from the nearest earlier state that's
+ * still known. This means that the memory used by terminal states stays
+ * below a fixed ceiling, however long the recordings are.
+ * <p>
+ * When the cache is over budget, it evicts the least recently used states
+ * first, except that the states of checkpoints are kept in preference to
+ * others (as they make replays short), and states near the playback cursor
+ * are evicted last (as they're the ones most likely to be needed again
+ * soon). The cache is shared between all ttyrecs.
+ * @author ais523
+ * @see TtyrecFrame#setCheckpointInterval(int, long)
+ */
+public class TerminalStateCache {
+    private static class Entry {
+        final vt320 state;
+        final long size;
+        final boolean checkpoint;
+        Entry(vt320 state, boolean checkpoint) {
+            this.state = state;
+            this.size = state.estimateMemoryUse();
+            this.checkpoint = checkpoint;
+        }
+    }
+
+    /* How many frames either side of the playback cursor count as near it. */
+    private static final int NEAR_CURSOR = 256;
+
+    private static long budget = Runtime.getRuntime().maxMemory() / 4;
+    private static long used = 0;
+    private static TtyrecFrame cursor = null;
+    // Both in least recently used order.
+    private static final LinkedHashMap<TtyrecFrame, Entry> ordinary =
+            new LinkedHashMap<>(16, 0.75f, true);
+    private static final LinkedHashMap<TtyrecFrame, Entry> checkpoints =
+            new LinkedHashMap<>(16, 0.75f, true);
+
+    private TerminalStateCache() {}
+
+    /**
+     * Looks up the cached terminal state of a frame.
+     * @param frame The frame whose state is wanted.
+     * @return The frame's terminal state, or null if it isn't cached.
+     */
+    public static synchronized vt320 get(TtyrecFrame frame) {
+        Entry e = ordinary.get(frame);
+        if (e == null) e = checkpoints.get(frame);
+        return e == null ? null : e.state;
+    }
+
+    /**
+     * Caches the terminal state of a frame, replacing any state that was
+     * previously cached for it. This may evict other states, to stay within
+     * the memory budget.
+     * @param frame The frame that the state belongs to.
+     * @param state The terminal state upon displaying the frame.
+     * @param checkpoint Whether the frame is a checkpoint.
+     */
+    public static synchronized void put(TtyrecFrame frame, vt320 state,
+                                        boolean checkpoint) {
+        remove(frame);
+        Entry e = new Entry(state, checkpoint);
+        (checkpoint ? checkpoints : ordinary).put(frame, e);
+        used += e.size;
+        evict(frame);
+    }
+
+    /**
+     * Forgets the cached terminal state of a frame, if there is one.
+     * @param frame The frame whose state should be forgotten.
+     */
+    public static synchronized void remove(TtyrecFrame frame) {
+        Entry old = ordinary.remove(frame);
+        if (old == null) old = checkpoints.remove(frame);
+        if (old != null) used -= old.size;
+    }
+
+    /**
+     * Tells the cache which frame is currently being shown, so that states
+     * near it are kept in preference to others.
+     * @param frame The frame at the playback cursor, or null if there isn't
+     * one.
+     */
+    public static synchronized void setPlaybackCursor(TtyrecFrame frame) {
+        cursor = frame;
+    }
+
+    /**
+     * Changes the amount of memory that terminal states may use. A larger
+     * budget makes seeking faster, as fewer frames need to be replayed.
+     * @param bytes The budget, in bytes (as estimated by
+     * VDUBuffer.estimateMemoryUse()).
+     * @see VDUBuffer#estimateMemoryUse()
+     */
+    public static synchronized void setBudget(long bytes) {
+        if (bytes < 1)
+            throw new IllegalArgumentException("Budget must be positive");
+        budget = bytes;
+        evict(null);
+    }
+
+    /**
+     * Returns the amount of memory that terminal states may use.
+     * @return The budget, in bytes.
+     */
+    public static synchronized long getBudget() {
+        return budget;
+    }
+
+    /**
+     * Returns the estimated amount of memory used by the cached states.
+     * @return The estimated size of the cache, in bytes.
+     */
+    public static synchronized long getMemoryUsed() {
+        return used;
+    }
+
+    /**
+     * Forgets every cached terminal state.
+     */
+    public static synchronized void clear() {
+        ordinary.clear();
+        checkpoints.clear();
+        used = 0;
+        cursor = null;
+    }
+
+    /* Evicts states until the cache is within budget, other than the state
+     * of keep, which was just added. First ordinary states far from the
+     * cursor go, then checkpoints far from the cursor, then anything. */
+    private static void evict(TtyrecFrame keep) {
+        evictFrom(ordinary, keep, true);
+        evictFrom(checkpoints, keep, true);
+        evictFrom(ordinary, keep, false);
+        evictFrom(checkpoints, keep, false);
+    }
+
+    private static void evictFrom(LinkedHashMap<TtyrecFrame, Entry> states,
+                                  TtyrecFrame keep, boolean farOnly) {
+        // States near the cursor that are skipped over are treated as
+        // recently used, so that they aren't looked at again on every
+        // eviction.
+        List<Map.Entry<TtyrecFrame, Entry>> skipped = new ArrayList<>();
+        Iterator<Map.Entry<TtyrecFrame, Entry>> it =
+                states.entrySet().iterator();
+        while (it.hasNext() && used > budget) {
+            Map.Entry<TtyrecFrame, Entry> e = it.next();
+            if (e.getKey() == keep) continue;
+            if (farOnly && isNearCursor(e.getKey())) {
+                skipped.add(e);
+            } else {
+                used -= e.getValue().size;
+            }
+            it.remove();
+        }
+        for (Map.Entry<TtyrecFrame, Entry> e : skipped)
+            states.put(e.getKey(), e.getValue());
+    }
+
+    private static boolean isNearCursor(TtyrecFrame frame) {
+        return cursor != null &&
+               Math.abs(frame.getSeqNumber() - cursor.getSeqNumber()) <=
+               NEAR_CURSOR;
+    }
+}
@@ -73,6 +73,7 @@ public class Ttyrec {
     private boolean isStreaming;
     private Date lastActivity;
     private final Map<Integer,byte[]> bytesRegistry;
+    private volatile FrameIndex frameIndex;
     
     /**
      * Creates a new ttyrec, without any information filled in
@@ -308,7 +309,10 @@ public class Ttyrec {
      * @return The length of the ttyrec in seconds.
      */
     public double getLength() {
-        return length + lengthOffset;
+        double l = length;
+        FrameIndex index = frameIndex;
+        if (index != null && index.getLength() > l) l = index.getLength();
+        return l + lengthOffset;
     }
     /**
      * Sets the length of time between the ttyrec's first and last frames.
@@ -446,6 +450,40 @@ public class Ttyrec {
         return frames.size();
     }
 
+    /**
+     * Returns the number of frames the ttyrec is known to have. This can be
+     * larger than getFrameCount(), if the frames have been found by an
+     * indexer but not yet analyzed.
+     * @return The number of frames in the ttyrec that are known about.
+     * @see #getFrameIndex()
+     */
+    public int getKnownFrameCount() {
+        int c = getFrameCount();
+        FrameIndex index = frameIndex;
+        if (index != null && index.getFrameCount() > c)
+            c = index.getFrameCount();
+        return c;
+    }
+
+    /**
+     * Gets the index of frame positions and timestamps that was produced by
+     * reading only the frame headers, if there is one.
+     * @return The frame index, or null if the ttyrec hasn't been indexed.
+     * @see TtyrecIndexer
+     */
+    public FrameIndex getFrameIndex() {
+        return frameIndex;
+    }
+    /**
+     * Sets the index of frame positions and timestamps for this ttyrec. The
+     * length of the ttyrec will be at least the length of the indexed
+     * frames, even if they haven't been analyzed yet.
+     * @param frameIndex The new frame index, or null to remove the index.
+     */
+    public void setFrameIndex(FrameIndex frameIndex) {
+        this.frameIndex = frameIndex;
+    }
+
     /**
      * Returns the frame number that this ttyrec should jump to as soon as it's
      * analyzed.
@@ -9,10 +9,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
-import java.nio.ByteBuffer;
-import java.nio.charset.CharacterCodingException;
-import java.nio.charset.Charset;
-import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.zip.GZIPInputStream;
@@ -53,13 +50,36 @@ public class TtyrecAnalyzer extends TtyrecWorker {
          * in the file.)
          */
         SCRIPT };
-    private final InputFormat format;
+    private InputFormat format;
+    private boolean detectFormat = false;
+    private IndexCache cached = null;
     private long byteloc;
+    private long cachedUpTo = -1;
+    private long innerByteloc; // how much compressed input has been read
     private InputStream outerInputStream;
     private InputStream innerInputStream;
 
     private final boolean formatDebug = false;
 
+
+    /**
+     * Creates an analyzer that works out which format its input is in before
+     * analyzing it. It first looks for the results of a previous analysis of
+     * the same file in the index cache; if there are some, they give the
+     * format, and if the frames were cached, they're recreated from the cache
+     * without examining their contents, with analysis continuing as normal
+     * after that. Otherwise, the format is found by looking at the start of
+     * the input.
+     * @param source The TtyrecSource to analyze for.
+     * @param seq The sequence number of this worker.
+     * @see FormatSniffer
+     * @see IndexCache
+     */
+    TtyrecAnalyzer(TtyrecSource source, int seq) {
+        this(source, seq, InputFormat.GZIP);
+        detectFormat = true;
+    }
+
     TtyrecAnalyzer(TtyrecSource source, int seq, InputFormat format) {
         super(source, seq, "Ttyrec Analyzer");
         this.format = format;
@@ -74,48 +94,37 @@ public class TtyrecAnalyzer extends TtyrecWorker {
         final ByteChunkList bytestream = workingFor.getBytestream();
         innerInputStream = new InputStream() {
 
-            private int loc = 0;
-
             @Override
             public int read() throws IOException {
-                while (loc > bytestream.size() - 1 &&
+                while (innerByteloc > bytestream.longSize() - 1 &&
                         !workingFor.knownLength()) {
                     try {
-                        synchronized(bytestream) {
-                            bytestream.wait();
-                        }
+                        bytestream.awaitLength(innerByteloc + 1, 0);
                     } catch (InterruptedException ex) {
                         throw new IOException("Interrupted");
                     }
                 }
-                int i;
                 try {
-                    i = bytestream.get(loc++);
+                    return bytestream.getByte(innerByteloc++) & 0xff;
                 } catch (IndexOutOfBoundsException ex) {
                     return -1;
                 }
-                if (i < 0) {
-                    i += 256;
-                }
-                return i;
             }
 
             @Override
             public int read(byte[] b, int off, int len) throws IOException {
-                while (loc > bytestream.size() - 1 &&
+                while (innerByteloc > bytestream.longSize() - 1 &&
                         !workingFor.knownLength()) {
                     try {
-                        synchronized(bytestream) {
-                            bytestream.wait();
-                        }
+                        bytestream.awaitLength(innerByteloc + 1, 0);
                     } catch (InterruptedException ex) {
                         throw new IOException("Interrupted");
                     }
                 }
                 int i;
                 try {
-                    i = bytestream.getRestOfChunk(loc, b, off, len);
-                    loc += i;
+                    i = bytestream.getRestOfChunk(innerByteloc, b, off, len);
+                    innerByteloc += i;
                 } catch (IndexOutOfBoundsException ex) {
                     return -1;
                 }
@@ -124,13 +133,13 @@ public class TtyrecAnalyzer extends TtyrecWorker {
 
             @Override
             public int available() throws IOException {
-                return (bytestream.size() - loc);
+                return (int) Math.min(bytestream.longSize() - innerByteloc,
+                        Integer.MAX_VALUE);
             }
         };
     }
 
-    // Notes: calls to this method must be synchronized on bytestream.
-    // InterruptedException's thrown if interrupted, TtyrecException
+    // Notes: InterruptedException's thrown if interrupted, TtyrecException
     // if we're trying to read from a compressed file and it's in the wrong
     // format, NullPointerException at EOF.
     private void getNextNBytes(byte[] array, int offset, int length)
@@ -139,14 +148,12 @@ public class TtyrecAnalyzer extends TtyrecWorker {
         long targetByteloc = byteloc + length;
         long origByteloc = byteloc;
         if (format != InputFormat.GZIP && format != InputFormat.BZIP2) {
-            while (byteloc > bytestream.size() - length && !workingFor.knownLength()) {
-                synchronized(bytestream) {
-                    bytestream.wait();
-                }
+            while (byteloc > bytestream.longSize() - length && !workingFor.knownLength()) {
+                bytestream.awaitLength(byteloc + length, 0);
             }
             while (byteloc < targetByteloc) {
                 try {
-                    byteloc += bytestream.getRestOfChunk((int)byteloc,
+                    byteloc += bytestream.getRestOfChunk(byteloc,
                             array, (int)(offset + byteloc - origByteloc),
                             (int)(targetByteloc - byteloc));
                 } catch(IndexOutOfBoundsException ex) {
@@ -182,11 +189,62 @@ public class TtyrecAnalyzer extends TtyrecWorker {
         }
     }
 
-    private byte getNextByte()
+    /* Reads a whole frame header in one go. Returns false if the input ended
+     * exactly where the header should start, in which case it's worth waiting
+     * for more input and trying again; an input that ends partway through a
+     * header is an error, as usual. */
+    private boolean readHeader(byte[] header, int length)
             throws InterruptedException, NullPointerException, TtyrecException {
-        byte[] c = new byte[1];
-        getNextNBytes(c,0,1);
-        return c[0];
+        long headerStart = byteloc;
+        try {
+            getNextNBytes(header, 0, length);
+        } catch (NullPointerException ex) {
+            if (byteloc != headerStart) throw ex;
+            ByteChunkList bytestream = workingFor.getBytestream();
+            bytestream.awaitLength(bytestream.longSize() + 1, 1000);
+            return false;
+        }
+        return true;
+    }
+
+    /* Decodes an unsigned 32-bit field, stored lsb first. */
+    private static long readHeaderField(byte[] header, int offset) {
+        return (header[offset] & 0xffL)
+                | (header[offset + 1] & 0xffL) << 8
+                | (header[offset + 2] & 0xffL) << 16
+                | (header[offset + 3] & 0xffL) << 24;
+    }
+
+    /* Waits until the format of the input can be determined, then sets the
+     * format of this analyzer, and the file type of the ttyrec, to match.
+     * Returns false if the analyzer was halted while waiting. */
+    private boolean detectFormat() throws InterruptedException {
+        ByteChunkList bytestream = workingFor.getBytestream();
+        FormatSniffer sniffer = new FormatSniffer(bytestream);
+        boolean noMoreData = false;
+        while (continueMainLoop()) {
+            if (sniffer.sniff(noMoreData)) {
+                format = sniffer.getFormat();
+                workingFor.getTtyrec().setFileType(sniffer.getFileType());
+                if (formatDebug) System.out.println("Detected " + format);
+                return true;
+            }
+            // If no more data arrives for a while, decide based on what
+            // we have, as long as there's something there.
+            long size = bytestream.longSize();
+            if (!bytestream.awaitLength(size + 1, 1000))
+                noMoreData = size > 0 || bytestream.isComplete();
+        }
+        return false;
+    }
+
+    /* Called upon reaching the end of the input so far, to save the results
+     * of the analysis for next time. */
+    private void cacheResults() {
+        long size = workingFor.getBytestream().longSize();
+        if (size == cachedUpTo) return;
+        if (workingFor.cacheAnalysis(this, format))
+            cachedUpTo = size;
     }
 
     /**
@@ -197,17 +255,26 @@ public class TtyrecAnalyzer extends TtyrecWorker {
     public void run() {
         boolean validHeaderFound = false;
         try {
+            if (detectFormat) {
+                // The cache is checked here rather than by the source, so
+                // that its file I/O doesn't hold up whoever unpaused us.
+                if (!continueMainLoop()) return;
+                cached = workingFor.loadIndexCache();
+                if (cached != null) {
+                    format = cached.getFormat();
+                    detectFormat = false;
+                }
+            }
+            if (detectFormat && !detectFormat()) return;
             // Try to deduce length, if we can.
             long bytesTotal = Long.MAX_VALUE;
             ByteChunkList bytestream = workingFor.getBytestream();
 
             final Ttyrec rec = workingFor.getTtyrec();
             if (workingFor.knownLength() && format == InputFormat.TTYREC) {
-                bytesTotal = workingFor.getBytestream().size();
+                bytesTotal = workingFor.getBytestream().longSize();
                 if (bytesTotal == 0)
                     throw new TtyrecException("File has zero length");
-                if (bytesTotal > Integer.MAX_VALUE)
-                    throw new TtyrecException("File is too large");
             }
 
             // Reset some of the values for the ttyrec. Global values in
@@ -216,65 +283,119 @@ public class TtyrecAnalyzer extends TtyrecWorker {
             // or we can set this safely.
             rec.resetEncodings();
 
-            int[] ibunsigned = new int[12];
+            if (cached != null) rec.setFileType(cached.getFileType());
+            // Multistream headers have an extra byte for the stream number.
+            int headerLength =
+                    rec.getFileType() == Ttyrec.FileType.MultistreamTtyrec ?
+                    13 : 12;
+            byte[] header = new byte[headerLength];
 
             /* Where we are in the file. */
             double lastTimestamp = 0;
             boolean timestampsFudged = false;
             double initialTimestamp = 0;
             boolean couldBeUnicode = true;
-            byte[][] choppedOff = new byte[TtyrecFrame.MAX_STREAM_COUNT][];
+            // UTF-8 characters can be split between frames of the same
+            // stream, so each stream is validated separately.
+            Utf8Validator[] validators =
+                    new Utf8Validator[TtyrecFrame.MAX_STREAM_COUNT];
+            for (int i = 0; i < validators.length; i++)
+                validators[i] = new Utf8Validator();
+            SequenceScanner[] resizeScanners =
+                    new SequenceScanner[TtyrecFrame.MAX_STREAM_COUNT];
+            for (int i = 0; i < resizeScanners.length; i++)
+                resizeScanners[i] = new SequenceScanner(
+                        "\u001b[?1049h", "\u001b[?1049l");
             boolean firstframe = true;
             TtyrecFrame previousFrame = null;
             byte[] frameBuffer = null;
             int framesAnalyzed = 0;
             try {
+                if (cached != null) {
+                    if (!cached.isEncodingPossible(Ttyrec.Encoding.UTF8)) {
+                        couldBeUnicode = false;
+                        rec.setNotUTF8();
+                    }
+                    if (!cached.isEncodingPossible(Ttyrec.Encoding.IBM))
+                        rec.setNotIBM();
+                    if (!cached.isEncodingPossible(Ttyrec.Encoding.Latin1))
+                        rec.setNotLatin1();
+                    if (cached.containsAutoResizeRangeInformation()) {
+                        rec.setContainsAutoResizeRangeInformation(sequenceNumber);
+                        workingFor.resetDecodeWorker();
+                        workingFor.cancelLeadingEdgeDecode();
+                    }
+                }
+                if (cached != null && cached.hasFrames()) {
+                    // Recreate the frames from the cache, without looking at
+                    // their contents, other than to find the bytes that
+                    // Unicode decoding carries from one frame to the next.
+                    initialTimestamp = cached.getInitialTimestamp();
+                    rec.setInitialTimestamp(initialTimestamp);
+                    for (int f = 0; f < cached.getFrameCount(); f++) {
+                        if (!continueMainLoop()) break;
+                        long offset = cached.getOffset(f);
+                        int length = cached.getFrameLength(f);
+                        while (!bytestream.awaitLength(offset + length, 1000))
+                            if (bytestream.isComplete())
+                                throw new TtyrecException(
+                                        "Cached index does not match input");
+                        int stream = cached.getStream(f);
+                        int chop = cached.getUnicodeChopEnding(f);
+                        byte[] prefix = validators[stream].getPendingBytes();
+                        double timestamp = cached.getRelativeTimestamp(f);
+                        previousFrame = new TtyrecFrame(previousFrame,
+                                bytestream, offset, length, prefix, chop,
+                                stream, timestamp, sequenceNumber);
+                        rec.setFrame(previousFrame, framesAnalyzed++);
+                        // The bytes chopped off this frame are the prefix of
+                        // the next frame in the same stream.
+                        byte[] tail = new byte[chop];
+                        int fromPrefix = Math.max(chop - length, 0);
+                        System.arraycopy(prefix, prefix.length - fromPrefix,
+                                tail, 0, fromPrefix);
+                        bytestream.getBytes(offset + length - chop + fromPrefix,
+                                tail, fromPrefix, chop - fromPrefix);
+                        validators[stream].reset();
+                        validators[stream].validate(tail, 0, chop);
+                        byteloc = offset + length;
+                        lastTimestamp = initialTimestamp + timestamp;
+                        setProgress(byteloc);
+                        if (rec.getLength() < timestamp)
+                            rec.setLength(timestamp);
+                    }
+                    firstframe = framesAnalyzed == 0;
+                    validHeaderFound = true;
+                    // There's no need to save what we just loaded.
+                    cachedUpTo = byteloc;
+                }
                 while (continueMainLoop() && byteloc < bytesTotal) {
                     setProgress(byteloc);
                     long length = -1;
                     int stream = -1;
                     double timestamp = -1.0;
                     byte[] frameData;
+                    // Where the frame is in the bytestream, or -1 if the
+                    // input is compressed and so it isn't there literally.
+                    long frameOffset = -1;
                     if (format != InputFormat.SCRIPT) {
                         /* The header information is three 4-byte fields:
                          * timestamp in seconds;
                          * milliseconds portion of timestamp;
                          * field length.
                          * Each is stored lsb first. */
-                        synchronized (bytestream) {
-                            for (int i = 0; i < 12; i++) {
-                                try {
-                                    ibunsigned[i] = getNextByte();
-                                } catch (NullPointerException ex) {
-                                    if (i == 0) {
-                                        // End of the file, and it's somewhere we
-                                        // were expecting; loop until something
-                                        // more happens.
-                                        bytestream.wait(1000);
-                                        i--;
-                                        continue;
-                                    } else {
-                                        throw ex;
-                                    }
-                                }
-                                if (ibunsigned[i] < 0) {
-                                    ibunsigned[i] += 256;
-                                }
-                            }
+                        if ((outerInputStream == null ? byteloc : innerByteloc)
+                                >= bytestream.longSize())
+                            cacheResults();
+                        if (!readHeader(header, headerLength)) {
+                            // End of the file, and it's somewhere we were
+                            // expecting; loop until something more happens.
+                            continue;
                         }
                         validHeaderFound = true;
-                        long time_s = (long) ibunsigned[0]
-                                + (long) ibunsigned[1] * (1 << 8)
-                                + (long) ibunsigned[2] * (1 << 16)
-                                + (long) ibunsigned[3] * (1 << 24);
-                        long time_us = (long) ibunsigned[4]
-                                + (long) ibunsigned[5] * (1 << 8)
-                                + (long) ibunsigned[6] * (1 << 16)
-                                + (long) ibunsigned[7] * (1 << 24);
-                        length = (long) ibunsigned[8]
-                                + (long) ibunsigned[9] * (1 << 8)
-                                + (long) ibunsigned[10] * (1 << 16)
-                                + (long) ibunsigned[11] * (1 << 24);
+                        long time_s = readHeaderField(header, 0);
+                        long time_us = readHeaderField(header, 4);
+                        length = readHeaderField(header, 8);
                         /* A rather crude check for ttyrec format. It's hard to
                          * do much better than this, though, because of the
                          * simplicity of the format. */
@@ -290,10 +411,8 @@ public class TtyrecAnalyzer extends TtyrecWorker {
                         if (length < 0) {
                             throw new TtyrecException("Negative-length frame");
                         }
-                        if (byteloc + length > bytesTotal - 12
-                                && byteloc + length != bytesTotal
-                                && (rec.getFileType() != Ttyrec.FileType.MultistreamTtyrec
-                                || byteloc + length != bytesTotal - 1)) {
+                        if (byteloc + length > bytesTotal - headerLength
+                                && byteloc + length != bytesTotal) {
                             throw new TtyrecException("Unexpected EOF");
                         }
 
@@ -301,44 +420,43 @@ public class TtyrecAnalyzer extends TtyrecWorker {
                         timestamp = time_s + time_us / (double) 1000000;
                         // Process the stream, if this is multiframe.
                         stream = 0;
-                        if (rec.getFileType() == Ttyrec.FileType.MultistreamTtyrec) {
-                            synchronized (bytestream) {
-                                stream = (int) getNextByte();
-                            }
+                        if (headerLength > 12) {
+                            stream = header[12];
                             if (stream < 0 || stream >= TtyrecFrame.MAX_STREAM_COUNT) {
                                 throw new TtyrecException("Invalid stream");
                             }
                         }
                         // Store data about the frame.
                         setProgress(byteloc);
+                        if (format == InputFormat.TTYREC)
+                            frameOffset = byteloc;
                         frameData = new byte[(int) length];
-                        synchronized (bytestream) {
-                            getNextNBytes(frameData, 0, (int) length);
-                        }
+                        getNextNBytes(frameData, 0, (int) length);
                     } else {
                         // Input format /is/ SCRIPT. Extract values from the
                         // metadata in the ByteChunkList.
 
+                        if (byteloc >= bytestream.longSize())
+                            cacheResults();
                         // Get more data, if necessary.
-                        synchronized(bytestream) {
-                            // A check for knownLength is omitted here; may as
-                            // well just go into an infinite loop if the input
-                            while (byteloc > bytestream.size() - 1 &&
-                                    !workingFor.knownLength())
-                                bytestream.wait();
-                            // Are we at a definite EOF?
-                            if (byteloc >= bytestream.size()) break;
-                        }
+                        // A check for knownLength is omitted here; may as
+                        // well just go into an infinite loop if the input
+                        while (byteloc > bytestream.longSize() - 1 &&
+                                !workingFor.knownLength())
+                            bytestream.awaitLength(byteloc + 1, 0);
+                        // Are we at a definite EOF?
+                        if (byteloc >= bytestream.longSize()) break;
                         // The 10000 is arbitrary; it breaks frames up every
                         // 10000 bytes or every packet of input data, whichever
                         // is shorter.
                         if (frameBuffer == null)
                             frameBuffer = new byte[10000];
                         length = bytestream.getRestOfChunk(
-                                (int)byteloc, frameBuffer, 0, frameBuffer.length);
+                                byteloc, frameBuffer, 0, frameBuffer.length);
                         frameData = Arrays.copyOf(frameBuffer, (int)length);
                         stream = 0;
-                        Date d = bytestream.getDate((int)byteloc);
+                        Date d = bytestream.getDate(byteloc);
+                        frameOffset = byteloc;
                         byteloc += length;
                         // getTime() outputs in milliseconds, change to seconds.
                         timestamp = d.getTime() / (double)1000;
@@ -370,62 +488,49 @@ public class TtyrecAnalyzer extends TtyrecWorker {
                     }
                     timestamp -= initialTimestamp;
 
-                    // Decoding as ISO-8859-1 turns bytes into codepoints literally,
-                    // because it's equal to Unicode for codepoints 0-255.
-                    String latin1Data = Charset.forName("ISO-8859-1").
-                            decode(ByteBuffer.wrap(frameData)).toString();
-                    byte[] oldChoppedOff;
-                    if (choppedOff[stream] != null)
-                        oldChoppedOff = Arrays.copyOf(choppedOff[stream],
-                                choppedOff[stream].length);
-                    else oldChoppedOff = new byte[0];
-                    byte[] oldFrameData =
-                            Arrays.copyOf(frameData,frameData.length);
+                    // Frames are checked for UTF-8 validity until one is
+                    // found that isn't; the chop length for non-UTF-8 frames
+                    // doesn't matter, as they'll never be decoded as UTF-8.
+                    byte[] unicodePrefix = validators[stream].getPendingBytes();
+                    int unicodeChop = 0;
                     if (couldBeUnicode || stream > 0) {
-                        for (int i = 0;; i++) {
+                        unicodeChop = validators[stream].validate(
+                                frameData, 0, frameData.length);
+                        if (unicodeChop < 0) {
+                            // Looks like it isn't UTF-8 in this frame, implying
+                            // that the whole ttyrec isn't Unicode.
                             try {
-                                byte[] fd = frameData;
-                                if (choppedOff[stream] != null) {
-                                    fd = Arrays.copyOf(choppedOff[stream],
-                                            choppedOff[stream].length +
-                                            frameData.length);
-                                    System.arraycopy(frameData, 0, fd,
-                                            choppedOff[stream].length,
-                                            frameData.length);
-                                }
-                                /* ignore the result, we're just checking for
-                                 * validity... */
-                                Charset.forName("UTF-8").newDecoder().
-                                        onMalformedInput(CodingErrorAction.REPORT).
-                                        decode(ByteBuffer.wrap(
-                                               fd,0,fd.length-i)).toString();
-                                choppedOff[stream] = Arrays.copyOfRange(fd,
-                                        fd.length-i, fd.length);
-                                break;
-                            } catch (CharacterCodingException ex) {
-                                // Looks like it isn't UTF-8 in this frame, implying
-                                // that the whole ttyrec isn't Unicode.
-                                if (i < 4 && i < frameData.length) continue;
-                                try {
-                                    if (workingFor.debug) {
-                                        System.err.println("\"" +
-                                                URLEncoder.encode(latin1Data, "ISO-8859-1") +
-                                                "\" is not UTF-8");
+                                if (workingFor.debug) {
+                                    // Decoding as ISO-8859-1 turns bytes into
+                                    // codepoints literally.
+                                    String latin1Data = new String(frameData,
+                                            StandardCharsets.ISO_8859_1);
+                                    System.err.println("\"" +
+                                            URLEncoder.encode(latin1Data, "ISO-8859-1") +
+                                            "\" is not UTF-8");
 
-                                    }
-                                } catch (UnsupportedEncodingException ex1) {
                                 }
-                                couldBeUnicode = false;
-                                rec.setNotUTF8();
-                                break;
+                            } catch (UnsupportedEncodingException ex1) {
                             }
+                            couldBeUnicode = false;
+                            rec.setNotUTF8();
+                            unicodePrefix = validators[stream].getPendingBytes();
+                            unicodeChop = 0;
                         }
                     }
-                    rec.setFrame(previousFrame = new TtyrecFrame(previousFrame,
-                            oldFrameData, oldChoppedOff,
-                            choppedOff[stream].length, stream, timestamp,
-                            sequenceNumber, rec.getBytesRegistry()),
-                            framesAnalyzed++);
+                    // If the frame can be found in the bytestream, refer to
+                    // it there instead, so that it isn't stored twice.
+                    if (frameOffset >= 0)
+                        previousFrame = new TtyrecFrame(previousFrame,
+                                bytestream, frameOffset, frameData.length,
+                                unicodePrefix, unicodeChop,
+                                stream, timestamp, sequenceNumber);
+                    else
+                        previousFrame = new TtyrecFrame(previousFrame,
+                                frameData, unicodePrefix,
+                                unicodeChop, stream, timestamp,
+                                sequenceNumber, rec.getBytesRegistry());
+                    rec.setFrame(previousFrame, framesAnalyzed++);
                     /* A sort of hack to determine autoresizing. The area of the
                      * ttyrec controlled by curses is normally marked with
                      * \e[?1049h .. \e[?1049l, but not all terminals support that.
@@ -433,17 +538,19 @@ public class TtyrecAnalyzer extends TtyrecWorker {
                      * doesn't, we mark the /entire recording/ autoresize by
                      * default, and hope for the best. This is done by setting
                      * the autoAutoResize false by default, and setting it true
-                     * as soon as we see a command that affects it. */
-                    if ((latin1Data.contains("\u001b[?1049h") ||
-                         latin1Data.contains("\u001b[?1049l")) &&
-                        !rec.containsAutoResizeRangeInformation(sequenceNumber, -1)) {
+                     * as soon as we see a command that affects it. The
+                     * command can be split between frames of a stream, so
+                     * each stream is scanned separately. */
+                    if (!rec.containsAutoResizeRangeInformation(sequenceNumber, -1) &&
+                        resizeScanners[stream].scan(
+                                frameData, 0, frameData.length) != 0) {
                         rec.setContainsAutoResizeRangeInformation(sequenceNumber);
                         workingFor.resetDecodeWorker();
                         workingFor.cancelLeadingEdgeDecode();
                     }
                     // Has the file finished loading yet?
                     if (workingFor.knownLength() && format == InputFormat.TTYREC) {
-                        bytesTotal = workingFor.getBytestream().size();
+                        bytesTotal = workingFor.getBytestream().longSize();
                     }
                     firstframe = false;
                     if (rec.getLength() < lastTimestamp - rec.getInitialTimestamp())
@@ -5,16 +5,53 @@
 
 package jettyplay;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
 /**
  *
  * @author ais523
  */
 public class TtyrecDecoder extends TtyrecWorker {
 
+    /* When at least this many frames are ready to decode at once (e.g. when
+     * redecoding a file that's already loaded), they're decoded in
+     * parallel; see decodeInParallel. */
+    private static final int PARALLEL_MIN_FRAMES = 256;
+    /* The most frames decoded in parallel in one go, so that the decoder
+     * still notices being paused or halted reasonably quickly. */
+    private static final int PARALLEL_MAX_FRAMES = 4096;
+    /* The segments of decodeInParallel each take a WorkerPool slot, so
+     * there's no point having more threads than slots. */
+    private static final ForkJoinPool decodePool =
+            new ForkJoinPool(WorkerPool.getSlotCount());
+    /* A frame the user wants to see is decoded straight away (see
+     * decodeAhead) unless the decoder would get to it within this many
+     * frames anyway. */
+    private static final int SEEK_JUMP_FRAMES = 64;
+    /* After skipping ahead, the decoder keeps this many frames decoded
+     * beyond the frame the user's looking at, so that playback can continue
+     * from there, before going back to fill in the frames it skipped. */
+    private static final int SEEK_LOOKAHEAD_FRAMES = 256;
+
     private int analyzerSeq;
     private int rows;
     private int columns;
     private Ttyrec.Encoding encodingCreatedWith;
+    // The next frame to decode after skipping ahead, or -1 if not skipping;
+    // aheadState is the state of the frame before it.
+    private int aheadFrame = -1;
+    private vt320 aheadState;
+    private int failedSeek = -1; // don't keep trying to skip to this frame
+    // The state of the frame we decoded most recently in order, and its
+    // index; the next frame is decoded from this rather than from the
+    // TerminalStateCache, which might have evicted it.
+    private int pinnedFrame = -1;
+    private vt320 pinnedState;
 
     /**
      * Creates a new ttyrec decoder.
@@ -47,25 +84,32 @@ public class TtyrecDecoder extends TtyrecWorker {
 
     private void backportOnFormatMismatch() {
         Ttyrec rec = workingFor.getTtyrec();
-        if (this.encodingCreatedWith != rec.getActualEncoding()) {
-            synchronized (this) {
-                if (!this.isHalted) {
-                    this.encodingCreatedWith = rec.getActualEncoding();
-                    workingFor.newBackportWorkerOfType(this,
-                            new TtyrecDecoder(workingFor,
-                            workingFor.getNextSequenceNumber(),
-                            rows, columns));
-                }
-            }
+        if (this.encodingCreatedWith != rec.getActualEncoding() &&
+                mayBackport()) {
+            this.encodingCreatedWith = rec.getActualEncoding();
+            workingFor.newBackportWorkerOfType(this,
+                    new TtyrecDecoder(workingFor,
+                    workingFor.getNextSequenceNumber(), rows, columns));
         }
     }
 
+    /* Whether this decoder may start a backport worker, i.e. it hasn't been
+     * halted. The backport worker itself has to be started without holding
+     * our monitor: that waits for the old backport worker to finish, which
+     * needs a slot in the WorkerPool, and a worker holding a slot might be
+     * waiting for our monitor (e.g. in TtyrecSource.subsumeWorker). */
+    private synchronized boolean mayBackport() {
+        return !isHalted;
+    }
+
     /**
-     * Decodes each frame of the ttyrec in turn.
+     * Decodes each frame of the ttyrec in turn. If the user seeks to a frame
+     * that hasn't been decoded yet (see TtyrecSource.seekTo), that frame and
+     * the frames just after it are decoded first, and the frames that were
+     * skipped are filled in afterwards.
      */
     @Override
     public void run() {
-        TtyrecFrame lastFrame = null;
         Ttyrec rec = workingFor.getTtyrec();
         int afc = 0;
         setProgress(0);
@@ -73,15 +117,19 @@ public class TtyrecDecoder extends TtyrecWorker {
             // We need to wait until a frame is available that was
             // generated by either the worker we're decoding for, or a
             // newer one.
-            while (rec.getFrameCount() <= afc ||
-                   rec.getFrameAtIndex(afc).getAnalyzerSeqNumber() < analyzerSeq) {
+            while (!isReady(afc)) {
                 backportOnFormatMismatch();
-                synchronized (rec) {
-                    try {
-                        rec.wait();
-                    } catch (InterruptedException ex) {
-                        return;
+                WorkerPool.beginWait();
+                try {
+                    synchronized (rec) {
+                        // The frame might have been added since we last
+                        // looked, in which case nothing will wake us.
+                        if (!isReady(afc)) rec.wait();
                     }
+                } catch (InterruptedException ex) {
+                    return;
+                } finally {
+                    WorkerPool.endWait();
                 }
             }
             TtyrecFrame frame = rec.getFrameAtIndex(afc);
@@ -94,63 +142,386 @@ public class TtyrecDecoder extends TtyrecWorker {
                 rows = rec.getForcedHeight();
                 columns = rec.getForcedWidth();
             }
-            frame.decodeFrame(rec.getActualEncoding(), rows, columns,
-                    rec.getForcedHeight() != -1,
-                    rec.containsAutoResizeRangeInformation(
-                    analyzerSeq, sequenceNumber),
-                    sequenceNumber);
-            switch (frame.getTerminalState().getCharacterEncodingOverride()) {
-                case Latin1:
-                    rec.setNotUTF8();
-                    rec.setNotIBM();
-                    break;
-                case UTF8:
-                    rec.setNotLatin1();
-                    rec.setNotIBM();
-                    break;
+            if (decodeForSeek(afc)) {
+                setProgress(afc);
+                continue;
             }
-            backportOnFormatMismatch();
-            if (frame.getTerminalState().isAutoResize()) {
-                int c = frame.getTerminalState().getColumns();
-                int r = frame.getTerminalState().getRows();
-                if ((c > columns || r > rows) &&
-                        rec.getForcedHeight() == -1) {
-                    // arbitrary: 500x500 or more means something went wrong
-                    // probably the recording was made on a terminal where
-                    // curses can't be distinguished from non-curses
-                    // so set to 80x24 nonresizing; maybe the user will add
-                    // an override
-                    if (c >= 500 || r >= 500) {
-                        synchronized (this) {
-                            if (!this.isHalted) {
-                                int s = workingFor.getNextSequenceNumber();
-                                rec.overrideContainsAutoResizeRangeInformation(s);
-                                workingFor.newBackportWorkerOfType(this,
-                                        new TtyrecDecoder(workingFor, s, 24, 80));
-                            }
-                            stopWorking(); // can't continue meaningfully
-                        }
-                    } else {
-                        // We expand the state of this decoder, and start a
-                        // backport decoder to fix the start of the encoding to
-                        // the same size as the end.
-                        columns = c;
-                        rows = r;
-                        synchronized (this) {
-                            if (!this.isHalted) {
-                                workingFor.newBackportWorkerOfType(this,
-                                        new TtyrecDecoder(workingFor,
-                                        workingFor.getNextSequenceNumber(), r, c));
-                            }
-                        }
-                    }
-                } else
-                    afc++;
-            } else
-                afc++;
+            int ready = afc > 0 && decodePool.getParallelism() > 1 ?
+                    countReadyFrames(afc) : 0;
+            if (ready >= PARALLEL_MIN_FRAMES) {
+                int next = decodeInParallel(afc, afc + ready);
+                if (next < 0) return;
+                if (next > afc) {
+                    afc = skipDecodedFrames(next);
+                    setProgress(afc);
+                    continue;
+                }
+            }
+            vt320 state;
+            if (afc == 0) {
+                state = frame.decodeFrame(rec.getActualEncoding(), rows,
+                        columns, rec.getForcedHeight() != -1,
+                        rec.containsAutoResizeRangeInformation(
+                        analyzerSeq, sequenceNumber),
+                        sequenceNumber);
+            } else {
+                TtyrecFrame previous = rec.getFrameAtIndex(afc - 1);
+                vt320 previousState = pinnedFrame == afc - 1 ?
+                        pinnedState : previous.getTerminalState();
+                if (previousState == null ||
+                        previous.getDecoderSeqNumber() != sequenceNumber) {
+                    // The frames before this one have been redecoded by a
+                    // newer decoder, which can take over from here.
+                    subsume();
+                    return;
+                }
+                state = frame.decodeFrame(previousState,
+                        rec.getActualEncoding(),
+                        previous.getFramesSinceCheckpoint(),
+                        previous.getBytesSinceCheckpoint(), sequenceNumber);
+            }
+            if (state == null) {
+                // Either we decoded this frame already, or a newer decoder
+                // did, in which case we'll notice at the top of the loop.
+                afc = skipDecodedFrames(afc);
+                continue;
+            }
+            pinnedFrame = afc;
+            pinnedState = state;
+            if (checkDecodedState(state))
+                afc = skipDecodedFrames(afc + 1);
             setProgress(afc);
-            lastFrame = frame;
-            if (this.isInterrupted()) return;
+            if (Thread.currentThread().isInterrupted()) return;
+        }
+    }
+
+    /* Counts the frames from the given frame onwards that have been analyzed
+     * by our analyzer or a newer one, and not yet decoded by us, up to
+     * PARALLEL_MAX_FRAMES. */
+    private int countReadyFrames(int from) {
+        Ttyrec rec = workingFor.getTtyrec();
+        int count = 0;
+        while (count < PARALLEL_MAX_FRAMES &&
+               isReady(from + count) &&
+               rec.getFrameAtIndex(from + count).getDecoderSeqNumber() !=
+               sequenceNumber)
+            count++;
+        return count;
+    }
+
+    /* Whether the given frame exists, and has been analyzed by our analyzer
+     * or a newer one. */
+    private boolean isReady(int frame) {
+        Ttyrec rec = workingFor.getTtyrec();
+        return frame < rec.getFrameCount() &&
+               rec.getFrameAtIndex(frame).getAnalyzerSeqNumber() >=
+               analyzerSeq;
+    }
+
+    /* Returns the first frame from the given frame onwards that we haven't
+     * decoded yet (having skipped ahead earlier), and stops skipping ahead
+     * if there's nothing left that was skipped. */
+    private int skipDecodedFrames(int frame) {
+        Ttyrec rec = workingFor.getTtyrec();
+        while (frame < rec.getFrameCount() &&
+               rec.getFrameAtIndex(frame).getDecoderSeqNumber() ==
+               sequenceNumber)
+            frame++;
+        if (frame == aheadFrame) {
+            // The frames skipped ahead to lead straight on from here.
+            pinnedFrame = aheadFrame - 1;
+            pinnedState = aheadState;
+        }
+        if (aheadFrame >= 0 && frame >= aheadFrame) {
+            aheadFrame = -1;
+            aheadState = null;
+        }
+        return frame;
+    }
+
+    /**
+     * Decodes towards the frame the user wants to see, if it hasn't been
+     * decoded yet: either by skipping straight to it, or, if we've already
+     * done that, by decoding the frames just after it. Skipping ahead means
+     * that the user doesn't have to wait for every frame before the one
+     * they want to be decoded first.
+     * @param afc The index of the first frame that hasn't been decoded.
+     * @return Whether any decoding was done. If not, the caller should carry
+     * on decoding from afc.
+     */
+    private boolean decodeForSeek(int afc) {
+        Ttyrec rec = workingFor.getTtyrec();
+        int target = workingFor.getSeekTarget();
+        if (afc == 0 || target < afc) return false;
+        int cursor = aheadFrame >= 0 ? aheadFrame : afc;
+        if ((target < cursor || target >= cursor + SEEK_JUMP_FRAMES) &&
+                target != failedSeek && isReady(target) &&
+                rec.getFrameAtIndex(target).getDecoderSeqNumber() <
+                sequenceNumber) {
+            vt320 state = decodeAhead(target);
+            if (state != null) {
+                aheadFrame = target + 1;
+                aheadState = state;
+                return true;
+            }
+            if (isHalted) return true;
+            failedSeek = target;
+        }
+        if (aheadFrame < 0 || aheadFrame >= target + SEEK_LOOKAHEAD_FRAMES ||
+                !isReady(aheadFrame)) return false;
+        TtyrecFrame previous = rec.getFrameAtIndex(aheadFrame - 1);
+        TtyrecFrame frame = rec.getFrameAtIndex(aheadFrame);
+        vt320 state;
+        if (frame.getDecoderSeqNumber() == sequenceNumber) {
+            // We've caught up with an earlier skip.
+            state = frame.getTerminalState();
+        } else {
+            state = frame.decodeFrame(aheadState, rec.getActualEncoding(),
+                    previous.getFramesSinceCheckpoint(),
+                    previous.getBytesSinceCheckpoint(), sequenceNumber);
+            if (state != null) checkDecodedState(state);
+        }
+        if (state == null) {
+            // A newer decoder got there first, or the state's been lost;
+            // either way, this frame's for the main decode to deal with.
+            aheadFrame = -1;
+            aheadState = null;
+            return false;
+        }
+        aheadFrame++;
+        aheadState = state;
+        return true;
+    }
+
+    /**
+     * Decodes the given frame without waiting for the frames before it to be
+     * decoded. A terminal is run through the frames since the nearest frame
+     * that we have decoded, without keeping their states, so this is much
+     * faster than decoding them; the frames skipped over are left for the
+     * main decode to fill in later.
+     * @param target The index of the frame to decode.
+     * @return The frame's terminal state, or null if it couldn't be decoded
+     * this way (or the decoder's been stopped or overtaken).
+     */
+    private vt320 decodeAhead(int target) {
+        Ttyrec rec = workingFor.getTtyrec();
+        int start = target - 1;
+        while (start >= 0 &&
+               rec.getFrameAtIndex(start).getDecoderSeqNumber() !=
+               sequenceNumber)
+            start--;
+        if (start < 0) return null;
+        TtyrecFrame before = rec.getFrameAtIndex(start);
+        vt320 startState = before.getTerminalState();
+        if (startState == null) return null;
+        vt320 terminal = TtyrecFrame.cloneState(startState);
+        int frames = before.getFramesSinceCheckpoint();
+        long bytes = before.getBytesSinceCheckpoint();
+        for (int i = start + 1; i < target; i++) {
+            // Not continueMainLoop(), as the user's waiting for this.
+            hibernate();
+            if (isHalted) return null;
+            TtyrecFrame frame = rec.getFrameAtIndex(i);
+            if (frame.getDecoderSeqNumber() > sequenceNumber) return null;
+            frames++;
+            bytes += frame.getFrameLength();
+            if (TtyrecFrame.isCheckpointDue(frames, bytes)) {
+                frames = 0;
+                bytes = 0;
+            }
+            frame.applyFrame(terminal, rec.getActualEncoding());
+            if (!checkDecodedState(terminal) && isHalted) return null;
+        }
+        vt320 state = rec.getFrameAtIndex(target).decodeFrame(terminal,
+                rec.getActualEncoding(), frames, bytes, sequenceNumber);
+        if (state != null) checkDecodedState(state);
+        return state;
+    }
+
+    /* Does whatever needs doing after a frame's been decoded, based on its
+     * terminal state: noticing what encoding it's in, and whether the
+     * terminal has been resized. Returns false if the frame needs looking
+     * at again (because the decoder's terminal size changed), or if the
+     * decoder has stopped itself. */
+    private boolean checkDecodedState(vt320 state) {
+        Ttyrec rec = workingFor.getTtyrec();
+        switch (state.getCharacterEncodingOverride()) {
+            case Latin1:
+                rec.setNotUTF8();
+                rec.setNotIBM();
+                break;
+            case UTF8:
+                rec.setNotLatin1();
+                rec.setNotIBM();
+                break;
+        }
+        backportOnFormatMismatch();
+        if (state.isAutoResize()) {
+            int c = state.getColumns();
+            int r = state.getRows();
+            if ((c > columns || r > rows) &&
+                    rec.getForcedHeight() == -1) {
+                // arbitrary: 500x500 or more means something went wrong
+                // probably the recording was made on a terminal where
+                // curses can't be distinguished from non-curses
+                // so set to 80x24 nonresizing; maybe the user will add
+                // an override
+                if (c >= 500 || r >= 500) {
+                    if (mayBackport()) {
+                        int s = workingFor.getNextSequenceNumber();
+                        rec.overrideContainsAutoResizeRangeInformation(s);
+                        workingFor.newBackportWorkerOfType(this,
+                                new TtyrecDecoder(workingFor, s, 24, 80));
+                    }
+                    stopWorking(); // can't continue meaningfully
+                    return false;
+                } else {
+                    // We expand the state of this decoder, and start a
+                    // backport decoder to fix the start of the encoding to
+                    // the same size as the end.
+                    columns = c;
+                    rows = r;
+                    if (mayBackport()) {
+                        workingFor.newBackportWorkerOfType(this,
+                                new TtyrecDecoder(workingFor,
+                                workingFor.getNextSequenceNumber(), r, c));
+                    }
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Decodes a run of frames using several threads. A terminal is run
+     * through the frames once, on this thread, to find the state at the
+     * start of each checkpoint; this is fast, as the states in between
+     * aren't kept. Then the stretches between checkpoints are decoded in
+     * parallel, each starting from its own state, giving the same results as
+     * decoding the frames one by one.
+     * @param from The index of the first frame to decode. The frame before
+     * it must already have been decoded.
+     * @param to The index after the last frame to decode.
+     * @return The index of the first frame that still needs decoding (which
+     * is from if nothing could be decoded), or -1 if this decoder has
+     * stopped.
+     */
+    private int decodeInParallel(int from, int to) {
+        Ttyrec rec = workingFor.getTtyrec();
+        TtyrecFrame before = rec.getFrameAtIndex(from - 1);
+        vt320 segmentStart = before.getTerminalState();
+        if (segmentStart == null ||
+                before.getDecoderSeqNumber() != sequenceNumber) return from;
+        vt320 terminal = TtyrecFrame.cloneState(segmentStart);
+        int frames = before.getFramesSinceCheckpoint();
+        long bytes = before.getBytesSinceCheckpoint();
+        Ttyrec.Encoding[] encodings = new Ttyrec.Encoding[to - from];
+        int[] frameCounts = new int[to - from];
+        long[] byteCounts = new long[to - from];
+        List<Callable<Boolean>> segments = new ArrayList<>();
+        int segmentFrom = from;
+        int end = from;
+        while (end < to) {
+            if (!continueMainLoop()) return -1;
+            TtyrecFrame frame = rec.getFrameAtIndex(end);
+            if (frame.getDecoderSeqNumber() > sequenceNumber) {
+                // We've been overtaken.
+                subsume();
+                return -1;
+            }
+            frameCounts[end - from] = frames;
+            byteCounts[end - from] = bytes;
+            frames++;
+            bytes += frame.getFrameLength();
+            if (TtyrecFrame.isCheckpointDue(frames, bytes)) {
+                frames = 0;
+                bytes = 0;
+                if (end > segmentFrom) {
+                    segments.add(new SegmentDecode(segmentFrom, end,
+                            segmentStart, from, encodings, frameCounts,
+                            byteCounts));
+                    // Sharing the rows with the pool first means that the
+                    // segment's states share them too.
+                    terminal.internRows();
+                    segmentStart = TtyrecFrame.cloneState(terminal);
+                    segmentFrom = end;
+                }
+            }
+            encodings[end - from] = rec.getActualEncoding();
+            frame.applyFrame(terminal, encodings[end - from]);
+            end++;
+            if (!checkDecodedState(terminal) && isHalted) break;
+        }
+        SegmentDecode last = new SegmentDecode(segmentFrom, end,
+                segmentStart, from, encodings, frameCounts, byteCounts);
+        segments.add(last);
+        boolean overtaken = false;
+        // The segments run in slots of their own, so ours is given up while
+        // waiting for them.
+        WorkerPool.beginWait();
+        try {
+            for (Future<Boolean> f : decodePool.invokeAll(segments))
+                if (!f.get()) overtaken = true;
+        } catch (InterruptedException ex) {
+            return -1;
+        } catch (ExecutionException ex) {
+            throw new RuntimeException(ex.getCause());
+        } finally {
+            WorkerPool.endWait();
+        }
+        if (isHalted) return -1;
+        if (overtaken) {
+            subsume();
+            return -1;
+        }
+        pinnedFrame = end - 1;
+        pinnedState = last.endState;
+        return end;
+    }
+
+    /* Decodes the frames of one segment of decodeInParallel, in order. */
+    private class SegmentDecode implements Callable<Boolean> {
+        private final int from;
+        private final int to;
+        private final vt320 startState;
+        private final int base;
+        private final Ttyrec.Encoding[] encodings;
+        private final int[] frameCounts;
+        private final long[] byteCounts;
+        // The state of the segment's last frame, once it's been decoded.
+        private vt320 endState;
+
+        SegmentDecode(int from, int to, vt320 startState, int base,
+                      Ttyrec.Encoding[] encodings, int[] frameCounts,
+                      long[] byteCounts) {
+            this.from = from;
+            this.to = to;
+            this.startState = startState;
+            this.base = base;
+            this.encodings = encodings;
+            this.frameCounts = frameCounts;
+            this.byteCounts = byteCounts;
+        }
+
+        /* Returns false if a newer decoder got to a frame first. */
+        @Override
+        public Boolean call() {
+            WorkerPool.beginHelping(TtyrecDecoder.this);
+            try {
+                Ttyrec rec = workingFor.getTtyrec();
+                vt320 state = startState;
+                for (int i = from; i < to && !isHalted; i++) {
+                    state = rec.getFrameAtIndex(i).decodeFrame(state,
+                            encodings[i - base], frameCounts[i - base],
+                            byteCounts[i - base], sequenceNumber);
+                    if (state == null) return false;
+                }
+                endState = state;
+                return true;
+            } finally {
+                WorkerPool.endHelping();
+            }
         }
     }
 
@@ -12,8 +12,10 @@ import java.nio.charset.CharacterCodingException;
 import java.nio.charset.Charset;
 import java.nio.charset.CodingErrorAction;
 import java.text.AttributedString;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.regex.Pattern;
 
@@ -25,10 +27,17 @@ public class TtyrecFrame {
     private final TtyrecFrame previous;
     private final TtyrecFrame[] previousInStream;
     private final byte[] frameData; // the raw bytes that make up the frame
+    private final ByteChunkList frameSource; // or where to find them, if null
+    private final long frameOffset;
+    private final int frameLength;
     private final byte[] unicodePrefix; // bytes to prepend for Unicode to work
     private final int unicodeChopEnding; // bytes to chop off for Unicode to work
     private final double relativeTimestamp;
-    private vt320 terminalState;
+    private vt320 terminalState; // only kept for the first frame
+    private boolean checkpoint;
+    private Ttyrec.Encoding decodedEncoding; // null if not decoded yet
+    private int framesSinceCheckpoint;
+    private long bytesSinceCheckpoint;
     private final int stream;
     private final int seqNumber; // sequence number of this frame
     private final int analyzerSeqNumber; // sequence number of the analyzer
@@ -44,6 +53,9 @@ public class TtyrecFrame {
      */
     public static final int MAX_STREAM_COUNT = 2;
 
+    private static volatile int checkpointFrames = 32;
+    private static volatile long checkpointBytes = 65536;
+
     //public static long created = 0;
     //public static long destroyed = 0;
 
@@ -76,6 +88,51 @@ public class TtyrecFrame {
                        byte[] unicodePrefix, int unicodeChopEnding,
                        int stream, double relativeTimestamp, int analyzerSeqNumber,
                        Map<Integer,byte[]> bytesRegistry) {
+        this(previous, null, 0, frameData.length, unicodePrefix,
+             unicodeChopEnding, stream, relativeTimestamp, analyzerSeqNumber,
+             bytesRegistry, frameData);
+    }
+
+    /**
+     * Creates a new frame of a ttyrec, whose raw data is stored in a
+     * bytestream rather than in the frame itself. The data is read back from
+     * the bytestream whenever it's needed, meaning that each frame's data
+     * is stored in memory only once. This only makes sense for uncompressed
+     * input, where the bytes of the frame appear literally in the bytestream.
+     * @param previous The immediately preceding frame in the same ttyrec. This
+     * can be null if this frame is the first one.
+     * @param frameSource The bytestream containing the raw data of the frame.
+     * Only appending to the bytestream is allowed after the frame is created.
+     * @param frameOffset The index within frameSource of the frame's first
+     * byte.
+     * @param frameLength The number of bytes in the frame.
+     * @param unicodePrefix A sequence of bytes that should be prepended to the
+     * frame when decoding it as UTF-8.
+     * @param unicodeChopEnding The number of bytes that should be ignored at
+     * the end of the frame when decoding it as UTF-8.
+     * @param stream Which stream number in the ttyrec this frame represents.
+     * @param relativeTimestamp The timestamp of this frame, minus the timestamp
+     * of the first frame in the ttyrec.
+     * @param analyzerSeqNumber The sequence number of the analyzer that
+     * analyzed this frame.
+     * @see #TtyrecFrame(TtyrecFrame, byte[], byte[], int, int, double, int, Map)
+     */
+    public TtyrecFrame(TtyrecFrame previous, ByteChunkList frameSource,
+                       long frameOffset, int frameLength,
+                       byte[] unicodePrefix, int unicodeChopEnding,
+                       int stream, double relativeTimestamp,
+                       int analyzerSeqNumber) {
+        this(previous, frameSource, frameOffset, frameLength, unicodePrefix,
+             unicodeChopEnding, stream, relativeTimestamp, analyzerSeqNumber,
+             null, null);
+    }
+
+    private TtyrecFrame(TtyrecFrame previous, ByteChunkList frameSource,
+                        long frameOffset, int frameLength,
+                        byte[] unicodePrefix, int unicodeChopEnding,
+                        int stream, double relativeTimestamp,
+                        int analyzerSeqNumber,
+                        Map<Integer,byte[]> bytesRegistry, byte[] frameData) {
         this.previous = previous;
         if (previous == null) {
             seqNumber = 0;
@@ -87,10 +144,15 @@ public class TtyrecFrame {
         }
         this.bytesRegistry = bytesRegistry;
         this.frameData = registerBytes(frameData);
+        this.frameSource = frameSource;
+        this.frameOffset = frameOffset;
+        this.frameLength = frameLength;
         this.unicodeChopEnding = unicodeChopEnding;
         this.stream = stream;
         this.relativeTimestamp = relativeTimestamp;
         this.terminalState = null;
+        this.decodedEncoding = null;
+        this.checkpoint = false;
         this.analyzerSeqNumber = analyzerSeqNumber;
         this.decoderSeqNumber = -1;
         this.unicodePrefix = unicodePrefix;
@@ -110,10 +172,145 @@ public class TtyrecFrame {
      * Returns the state of the terminal upon displaying this frame. This is
      * unlikely to have a sensible value until the frame is decoded, and may
      * never have a sensible value for streams other than stream 0.
-     * @return A vt320 terminal initialized with the required state.
+     * <p>
+     * Only the first frame stores its terminal state permanently; other
+     * frames' states are held in the TerminalStateCache, and if they've been
+     * evicted from it, they're recreated by replaying frames from the nearest
+     * earlier frame whose state is known. This is only possible if that frame,
+     * and every frame in between, were decoded by the same decoder as this
+     * one.
+     * @return A vt320 terminal initialized with the required state, or null
+     * if this frame hasn't been decoded, or its state has been evicted and
+     * can't be recreated.
+     */
+    public vt320 getTerminalState() {
+        vt320 state = getKnownTerminalState();
+        if (state != null) return state;
+        int seq;
+        synchronized (this) {
+            if (decodedEncoding == null) return null;
+            seq = decoderSeqNumber;
+        }
+        // Find the nearest earlier frame whose state is known, then replay
+        // the frames after it. The first frame's state is always known.
+        List<TtyrecFrame> replay = new ArrayList<>();
+        TtyrecFrame f = this;
+        int lastCheckpoint = -1; // the replayed checkpoint nearest this frame
+        while (state == null) {
+            replay.add(f);
+            if (lastCheckpoint < 0 && f.isCheckpoint())
+                lastCheckpoint = replay.size() - 1;
+            f = f.previous;
+            if (f == null) return null;
+            synchronized (f) {
+                // A decoder that skipped ahead may have left a gap, or frames
+                // decoded by an older decoder; and a newer decoder may be
+                // redecoding the frames before this one. Either way, their
+                // states don't lead on to this frame's.
+                if (f.decodedEncoding == null || f.decoderSeqNumber != seq)
+                    return null;
+                state = f.getKnownTerminalState();
+            }
+        }
+        if (lastCheckpoint < 0) lastCheckpoint = replay.size() - 1;
+        // Only the checkpoints, and the frames between this frame and the
+        // checkpoint before it, are cached; there's no point in flooding the
+        // cache with every frame replayed after a long seek.
+        for (int i = replay.size() - 1; i >= 0; i--) {
+            TtyrecFrame g = replay.get(i);
+            state = g.replayFrame(state, i <= lastCheckpoint ||
+                                         g.isCheckpoint());
+        }
+        return state;
+    }
+
+    /* Returns the terminal state if it's stored or cached, without
+     * replaying any frames. */
+    private synchronized vt320 getKnownTerminalState() {
+        if (terminalState != null) return terminalState;
+        if (decodedEncoding == null) return null;
+        return TerminalStateCache.get(this);
+    }
+
+    /* Works out the state of this frame from the state of the previous
+     * frame, the same way that decodeFrame did, and maybe caches it. */
+    private vt320 replayFrame(vt320 previousState, boolean cache) {
+        Ttyrec.Encoding encoding;
+        int seq;
+        synchronized (this) {
+            encoding = decodedEncoding;
+            seq = decoderSeqNumber;
+        }
+        vt320 state = cloneState(previousState);
+        applyFrame(state, encoding);
+        state.makeReadOnly();
+        synchronized (this) {
+            // Don't cache the result if the frame was redecoded meanwhile.
+            if (cache && seq == decoderSeqNumber && terminalState == null)
+                TerminalStateCache.put(this, state, checkpoint);
+        }
+        return state;
+    }
+
+    /**
+     * Changes how often frames become checkpoints, for frames decoded from
+     * now on. A frame becomes a checkpoint once the given number of frames,
+     * or the given number of bytes of frame data, have been decoded since the
+     * last checkpoint. The terminal states of checkpoints are kept in
+     * preference to those of other frames, so frequent checkpoints make it
+     * faster to seek, at the cost of memory.
+     * @param frames The maximum number of frames between checkpoints.
+     * @param bytes The maximum number of bytes between checkpoints.
+     */
+    public static void setCheckpointInterval(int frames, long bytes) {
+        if (frames < 1 || bytes < 1)
+            throw new IllegalArgumentException(
+                    "Checkpoint intervals must be positive");
+        checkpointFrames = frames;
+        checkpointBytes = bytes;
+    }
+
+    /* Whether a frame should be a checkpoint, given how many frames and bytes
+     * have been decoded since the last checkpoint, including the frame. */
+    static boolean isCheckpointDue(int frames, long bytes) {
+        return frames >= checkpointFrames || bytes >= checkpointBytes;
+    }
+
+    /**
+     * Gets the number of frames decoded since the last checkpoint, as of
+     * this frame. This is 0 for a checkpoint.
+     * @return The number of frames after the last checkpoint, up to and
+     * including this one.
+     */
+    synchronized int getFramesSinceCheckpoint() {
+        return framesSinceCheckpoint;
+    }
+
+    /**
+     * Gets the number of bytes of frame data decoded since the last
+     * checkpoint, as of this frame. This is 0 for a checkpoint.
+     * @return The number of bytes in the frames after the last checkpoint,
+     * up to and including this one.
+     */
+    synchronized long getBytesSinceCheckpoint() {
+        return bytesSinceCheckpoint;
+    }
+
+    /**
+     * Queries whether this frame is a checkpoint, whose terminal state is
+     * kept in preference to those of other frames.
+     * @return True if this frame was a checkpoint when it was last decoded.
      */
-    public synchronized vt320 getTerminalState() {
-        return terminalState;
+    public synchronized boolean isCheckpoint() {
+        return checkpoint;
+    }
+
+    /**
+     * Gets the position of this frame within its ttyrec.
+     * @return The number of frames before this one.
+     */
+    int getSeqNumber() {
+        return seqNumber;
     }
     /**
      * Queries this frame's stream number.
@@ -122,6 +319,37 @@ public class TtyrecFrame {
     public int getStream() {
         return stream;
     }
+    /**
+     * Queries whether this frame's data is stored in a bytestream, rather
+     * than in the frame itself.
+     * @return True if the frame refers to its data in a bytestream.
+     */
+    public boolean isInBytestream() {
+        return frameSource != null;
+    }
+    /**
+     * Gets the position of this frame's data in its bytestream. This is only
+     * meaningful if isInBytestream() returns true.
+     * @return The index of the frame's first byte in the bytestream.
+     */
+    public long getFrameOffset() {
+        return frameOffset;
+    }
+    /**
+     * Gets the number of bytes of raw data in this frame.
+     * @return The length of the frame's data.
+     */
+    public int getFrameLength() {
+        return frameLength;
+    }
+    /**
+     * Gets the number of bytes that are ignored at the end of this frame when
+     * decoding it as UTF-8.
+     * @return The number of bytes to chop off.
+     */
+    public int getUnicodeChopEnding() {
+        return unicodeChopEnding;
+    }
     /**
      * Gets the sequence number of the analyzer that determined that this frame
      * existed.
@@ -159,7 +387,10 @@ public class TtyrecFrame {
     }
 
     /**
-     * Decodes one frame. This should be called by a ttyrec decoder.
+     * Decodes the first frame of a ttyrec, starting from a blank terminal.
+     * This should be called by a ttyrec decoder; the other frames are
+     * decoded from the state of the frame before them, using
+     * decodeFrame(vt320, Ttyrec.Encoding, int, long, int).
      * @param encoding The encoding that this frame should be considered to be
      * in when decoding it.
      * @param rows The number of rows in the terminal immediately before this
@@ -174,44 +405,108 @@ public class TtyrecFrame {
      * autoresized regardless. This is ignored if sizeForced is set to true.
      * @param decoderSeqNumber The sequence number of the decoder that requested
      * this frame decode.
+     * @return The terminal state upon displaying this frame, or null if this
+     * decoder or a newer one has already decoded it.
+     * @throws IllegalStateException If this isn't the first frame.
      */
-    public synchronized void decodeFrame
+    public synchronized vt320 decodeFrame
             (Ttyrec.Encoding encoding, int rows, int columns,
             boolean sizeForced,
             boolean autoAutoResize, int decoderSeqNumber) {
-        if (decoderSeqNumber <= this.decoderSeqNumber) return;
+        if (previous != null)
+            throw new IllegalStateException(
+                    "Only the first frame is decoded from a blank terminal");
+        if (decoderSeqNumber <= this.decoderSeqNumber) return null;
         this.decoderSeqNumber = decoderSeqNumber;
-        if (previous == null) {
-            terminalState = new vt320();
-            terminalState.setScreenSize(columns, rows);
-            if (!autoAutoResize)
-                terminalState.setAutoResize(true);
-            if (sizeForced) {
-                terminalState.setAutoResize(false);
-                terminalState.setVetoAutoResize(true);
-            }
-        } else {
-            try {
-                terminalState = (vt320) previous.getTerminalState().clone();
-            } catch (CloneNotSupportedException ex) {
-                // Something has gone very wrong...
-                throw new Error(ex.getMessage());
-            }
+        vt320 state = new vt320();
+        state.setScreenSize(columns, rows);
+        if (!autoAutoResize)
+            state.setAutoResize(true);
+        if (sizeForced) {
+            state.setAutoResize(false);
+            state.setVetoAutoResize(true);
         }
+        framesSinceCheckpoint = 0;
+        bytesSinceCheckpoint = 0;
+        decodedEncoding = encoding;
+        applyFrame(state, encoding);
+        state.makeReadOnly();
+        checkpoint = true;
+        // Every replay ends up here if nothing else is known, so this state
+        // is never evicted.
+        terminalState = state;
+        setDirty(true);
+        return state;
+    }
+
+    /**
+     * Decodes one frame, starting from a given terminal state rather than
+     * that of the previous frame. This is for decoders that work out the
+     * states some other way than frame by frame (say, in parallel, or by
+     * skipping ahead to the frame the user wants to see); the result is the
+     * same as from decodeFrame, as long as the given state and counts are
+     * those of the previous frame. The previous frame doesn't have to have
+     * been decoded itself. It can't be used on the first frame.
+     * @param previousState The terminal state upon displaying the previous
+     * frame. This isn't modified.
+     * @param encoding The encoding that this frame should be considered to be
+     * in when decoding it.
+     * @param previousFrames The number of frames decoded since the last
+     * checkpoint, as of the previous frame (i.e. what its
+     * getFramesSinceCheckpoint() would return once it's decoded).
+     * @param previousBytes The number of bytes decoded since the last
+     * checkpoint, as of the previous frame.
+     * @param decoderSeqNumber The sequence number of the decoder that requested
+     * this frame decode.
+     * @return The terminal state upon displaying this frame, or null if a
+     * newer decoder has already decoded it.
+     */
+    public synchronized vt320 decodeFrame(vt320 previousState,
+            Ttyrec.Encoding encoding, int previousFrames, long previousBytes,
+            int decoderSeqNumber) {
+        if (decoderSeqNumber <= this.decoderSeqNumber) return null;
+        this.decoderSeqNumber = decoderSeqNumber;
+        framesSinceCheckpoint = previousFrames + 1;
+        bytesSinceCheckpoint = previousBytes + frameLength;
+        checkpoint = isCheckpointDue(framesSinceCheckpoint,
+                                     bytesSinceCheckpoint);
+        if (checkpoint) {
+            framesSinceCheckpoint = 0;
+            bytesSinceCheckpoint = 0;
+        }
+        vt320 state = cloneState(previousState);
+        decodedEncoding = encoding;
+        applyFrame(state, encoding);
+        state.makeReadOnly();
+        TerminalStateCache.put(this, state, checkpoint);
+        setDirty(true);
+        return state;
+    }
+
+    static vt320 cloneState(vt320 state) {
+        try {
+            return (vt320) state.clone();
+        } catch (CloneNotSupportedException ex) {
+            // Something has gone very wrong...
+            throw new Error(ex.getMessage());
+        }
+    }
+
+    /* Sends this frame's data to a terminal that's in the state of the
+     * previous frame. The terminal is left writable. */
+    void applyFrame(vt320 state, Ttyrec.Encoding encoding) {
         if (stream != 0) return; // nonzero streams don't need decoding
         if (encoding == Ttyrec.Encoding.IBM)
-            terminalState.setIBMCharset(true);
+            state.setIBMCharset(true);
         else
-            terminalState.setIBMCharset(false);
+            state.setIBMCharset(false);
         if (encoding == Ttyrec.Encoding.UTF8) {
-            terminalState.putString(getUnicodeData());
+            state.putString(getUnicodeData());
         } else {
             // Decoding as ISO-8859-1 turns bytes into codepoints literally,
             // because it's equal to Unicode for codepoints 0-255.
-            terminalState.putString(getRawData());
+            state.putString(getRawData());
         }
-        terminalState.makeReadOnly();
-        setDirty(true);
     }
 
     /**
@@ -221,8 +516,9 @@ public class TtyrecFrame {
      * @return Whether the Pattern specified was found in this frame.
      */
     public boolean containsPattern(Pattern p) {
-        if (terminalState == null) return false;
-        return terminalState.containsPattern(p);
+        vt320 state = getTerminalState();
+        if (state == null) return false;
+        return state.containsPattern(p);
     }
 
     private AttributedString attributedAnnotation(double relativeTime) {
@@ -287,6 +583,27 @@ public class TtyrecFrame {
         return data;
     }
 
+    /**
+     * Returns the raw bytes of this frame. If they're stored in a bytestream
+     * rather than the frame itself, this makes a new copy of them.
+     * @return The bytes that make up the frame. If the bytestream has been
+     * cut short since the frame was found (e.g. because the file was
+     * truncated), only the part of the frame that's still there.
+     */
+    private byte[] getFrameData() {
+        if (frameData != null) return frameData;
+        long available = frameSource.longSize() - frameOffset;
+        int length = (int) Math.max(0, Math.min(frameLength, available));
+        byte[] b = new byte[length];
+        try {
+            frameSource.getBytes(frameOffset, b, 0, length);
+        } catch (IndexOutOfBoundsException ex) {
+            // It was cut short while we were reading it.
+            return new byte[0];
+        }
+        return b;
+    }
+
     /**
      * Returns the data for this frame raw, encoding each byte of the input
      * string as one Latin-1 character.
@@ -294,7 +611,7 @@ public class TtyrecFrame {
      */
     private String getRawData() {
         String latin1Data = Charset.forName("ISO-8859-1").
-                decode(ByteBuffer.wrap(frameData)).toString();
+                decode(ByteBuffer.wrap(getFrameData())).toString();
         return latin1Data;
     }
 
@@ -306,17 +623,24 @@ public class TtyrecFrame {
      * @return the unicodeData
      */
     private String getUnicodeData() {
+        byte[] frameData = getFrameData();
+        // If the frame's been cut short, it can end partway through a
+        // character, and there might not be as much left to chop off as
+        // there was when the frame was analyzed.
+        boolean cutShort = frameData.length < frameLength;
+        int chopEnding = Math.min(unicodeChopEnding, frameData.length);
         byte[] b;
-        if (unicodePrefix.length != 0 || unicodeChopEnding != 0) {
-            b = new byte[frameData.length + unicodePrefix.length - unicodeChopEnding];
+        if (unicodePrefix.length != 0 || chopEnding != 0) {
+            b = new byte[frameData.length + unicodePrefix.length - chopEnding];
             System.arraycopy(unicodePrefix,0,b,0,unicodePrefix.length);
             System.arraycopy(frameData,0,b,
-                    unicodePrefix.length,frameData.length - unicodeChopEnding);
+                    unicodePrefix.length,frameData.length - chopEnding);
         } else b = frameData;
         String unicodeData;
         try {
             unicodeData = Charset.forName("UTF-8").newDecoder().
-                    onMalformedInput(CodingErrorAction.REPORT).
+                    onMalformedInput(cutShort ? CodingErrorAction.REPLACE :
+                                                CodingErrorAction.REPORT).
                     decode(ByteBuffer.wrap(b)).toString();
         } catch (CharacterCodingException ex) {
             throw new RuntimeException("UTF-8 became invalid while we weren't looking at it");
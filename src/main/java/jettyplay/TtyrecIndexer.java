@@ -0,0 +1,155 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package jettyplay;
+
+/**
+ * A TtyrecWorker that quickly finds the frames of an uncompressed ttyrec by
+ * reading only their headers, skipping over the data in between. The
+ * result is a FrameIndex, which is given to the ttyrec as soon as it's
+ * clear which format the file is in; this lets the length and frame count
+ * of the ttyrec be known long before the analyzer has finished with it.
+ * <p>
+ * The indexer doesn't replace the analyzer; it just runs ahead of it. If
+ * the input doesn't look like a ttyrec (e.g. it's compressed, or a script
+ * file), the indexer gives up, and the ttyrec's length is determined by
+ * analysis alone, as normal.
+ * @author ais523
+ */
+public class TtyrecIndexer extends TtyrecWorker {
+
+    /* Follows a chain of headers through the bytestream, assuming a
+     * particular header format. This is also used by FormatSniffer. */
+    static class HeaderChain {
+        final FrameIndex index;
+        final int headerLength;
+        final byte[] header;
+        long byteloc = 0;
+        double lastTimestamp = 0;
+        boolean valid = true;
+
+        HeaderChain(boolean multistream) {
+            index = new FrameIndex(multistream);
+            headerLength = multistream ? 13 : 12;
+            header = new byte[headerLength];
+        }
+
+        /* Tries to index one more frame. Returns false if there isn't enough
+         * data yet, or if the headers turn out not to be valid. */
+        boolean step(ByteChunkList bytestream) {
+            if (!valid) return false;
+            long available = bytestream.longSize();
+            if (byteloc + headerLength > available) return false;
+            bytestream.getBytes(byteloc, header, 0, headerLength);
+            long time_s = readInt(0);
+            long time_us = readInt(4);
+            long length = readInt(8);
+            int stream = headerLength > 12 ? header[12] : 0;
+            // The same checks that the analyzer makes.
+            double timestamp = time_s + time_us / (double) 1000000;
+            if (time_us >= 1000000 || length > Integer.MAX_VALUE ||
+                    stream < 0 || stream >= TtyrecFrame.MAX_STREAM_COUNT ||
+                    timestamp < lastTimestamp) {
+                valid = false;
+                return false;
+            }
+            if (byteloc + headerLength + length > available) return false;
+            index.addFrame(byteloc + headerLength, (int) length,
+                    timestamp, stream);
+            lastTimestamp = timestamp;
+            byteloc += headerLength + length;
+            return true;
+        }
+
+        private long readInt(int offset) {
+            return (header[offset] & 0xffL)
+                    | (header[offset + 1] & 0xffL) << 8
+                    | (header[offset + 2] & 0xffL) << 16
+                    | (header[offset + 3] & 0xffL) << 24;
+        }
+    }
+
+    /* How many frames to index between updates of the ttyrec. */
+    private static final int FRAMES_PER_BATCH = 4096;
+
+    /**
+     * Creates a new indexer, in a paused state.
+     * @param source The TtyrecSource whose bytestream should be indexed.
+     * @param seq The sequence number of this worker.
+     */
+    TtyrecIndexer(TtyrecSource source, int seq) {
+        super(source, seq, "Ttyrec Indexer");
+    }
+
+    /**
+     * Reads frame headers from the bytestream until it becomes clear that
+     * the input isn't an uncompressed ttyrec, or until the end of the input.
+     * If the input is still growing, this keeps indexing new frames as they
+     * arrive.
+     */
+    @Override
+    public void run() {
+        final ByteChunkList bytestream = workingFor.getBytestream();
+        final Ttyrec rec = workingFor.getTtyrec();
+        // Multistream is first, because the analyzer tries it first, and
+        // it's the stricter of the two formats.
+        HeaderChain[] chains = {new HeaderChain(true), new HeaderChain(false)};
+        HeaderChain published = null;
+        boolean stalled = false;
+        try {
+            while (continueMainLoop()) {
+                if (!bytestream.awaitLength(3, 1000)) {
+                    if (bytestream.isComplete()) return;
+                    continue;
+                }
+                if (isCompressed(bytestream)) return;
+                boolean progressed = false;
+                for (HeaderChain c : chains)
+                    for (int i = 0; i < FRAMES_PER_BATCH && c.step(bytestream);
+                         i++)
+                        progressed = true;
+                if (progressed) stalled = false;
+                HeaderChain chosen = chooseChain(chains, bytestream, stalled);
+                if (chosen != published) {
+                    published = chosen;
+                    rec.setFrameIndex(chosen == null ? null : chosen.index);
+                }
+                if (chosen != null) setProgress(chosen.byteloc);
+                if (!chains[0].valid && !chains[1].valid) return;
+                if (!progressed) {
+                    if (bytestream.isComplete()) return;
+                    stalled = !bytestream.awaitLength(
+                            bytestream.longSize() + 1, 1000);
+                }
+            }
+        } catch (InterruptedException ex) {
+            // Do nothing, we must have been halted.
+        }
+    }
+
+    /* Works out which format the input is in, if that's clear yet. */
+    private static HeaderChain chooseChain(HeaderChain[] chains,
+                                           ByteChunkList bytestream,
+                                           boolean stalled) {
+        HeaderChain multistream = chains[0];
+        HeaderChain regular = chains[1];
+        if (multistream.valid && !regular.valid) return multistream;
+        if (regular.valid && !multistream.valid) return regular;
+        // If both formats are plausible, wait until the end of the input (or
+        // until no more input arrives for a while) to decide; a multistream
+        // ttyrec wins if it fits exactly.
+        if (!multistream.valid) return null;
+        if (!bytestream.isComplete() && !stalled) return null;
+        long size = bytestream.longSize();
+        if (multistream.byteloc == size) return multistream;
+        if (regular.byteloc == size) return regular;
+        return null;
+    }
+
+    private static boolean isCompressed(ByteChunkList bytestream) {
+        return FormatSniffer.isGzip(bytestream) ||
+               FormatSniffer.isBzip2(bytestream);
+    }
+}
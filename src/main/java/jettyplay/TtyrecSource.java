@@ -6,6 +6,7 @@ package jettyplay;
 
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.io.File;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.HashSet;
@@ -40,8 +41,9 @@ import javax.swing.Timer;
  * There's one other important piece of state here; the raw bytestream
  * from the source, which never changes but which might be appended to
  * at arbitrary moments. If the leading edge analyze process reaches a stage
- * where it needs more data to continue, it waits on the bytestream's monitor,
- * and is notified if and when more data appears on the bytestream. (This
+ * where it needs more data to continue, it blocks in the bytestream's
+ * awaitLength() method, and is woken if and when more data appears on the
+ * bytestream. (This
  * cannot happen with the backport process, because it cannot reach that
  * stage without overtaking the leading edge process.) Likewise, the leading
  * edge decode process may reach the last frame that's been analyzed so far;
@@ -62,6 +64,7 @@ public abstract class TtyrecSource extends Thread {
     private volatile TtyrecAnalyzer backportAnalyze;
     private volatile TtyrecDecoder leadingEdgeDecode;
     private volatile TtyrecDecoder backportDecode;
+    private volatile TtyrecIndexer indexer;
     private final Ttyrec rec;
     private final ByteChunkList bytestream;
     private int nextSequenceNumber;
@@ -72,6 +75,7 @@ public abstract class TtyrecSource extends Thread {
     private volatile boolean analyzeEventHappened = false;
     private volatile boolean decodeEventHappened = false;
     private volatile boolean readEventHappened = false;
+    private volatile int seekTarget = -1;
     final boolean debug = false;
 
     /**
@@ -96,16 +100,20 @@ public abstract class TtyrecSource extends Thread {
         });
         listenerTimer.restart();
         // The analyzer must be created before the decoder.
-        // The analyzer starts with the most obvious-to-reject format (GZIP),
-        // then tries the other formats in turn.
-        leadingEdgeAnalyze =
-                new TtyrecAnalyzer(this, 1, TtyrecAnalyzer.InputFormat.GZIP);
+        // The analyzer looks at the start of the input to determine its
+        // format; if that turns out to be wrong, it tries the other formats
+        // in turn.
+        leadingEdgeAnalyze = new TtyrecAnalyzer(this, 1);
         // The decoder starts by trying 24x80, expanding if necessary.
         leadingEdgeDecode = new TtyrecDecoder(this, 2, 24, 80);
+        // The indexer runs ahead of the analyzer, reading only frame headers,
+        // so that the length of the ttyrec is known early.
+        indexer = new TtyrecIndexer(this, 3);
         leadingEdgeAnalyze.start();
         leadingEdgeDecode.start();
-        leadingEdgeDecode.setPriority(MIN_PRIORITY);
-        nextSequenceNumber = 3;
+        leadingEdgeDecode.setPriority(TtyrecWorker.MIN_PRIORITY);
+        indexer.start();
+        nextSequenceNumber = 4;
     }
 
     /**
@@ -124,11 +132,58 @@ public abstract class TtyrecSource extends Thread {
         try {
             leadingEdgeDecode.resumeWorking();
         } catch (NullPointerException x) {}
+        try {
+            indexer.resumeWorking();
+        } catch (NullPointerException x) {}
         if (debug) {
             System.err.println("Unpausing " + this);
         }
     }
 
+    /**
+     * Looks up the results of a previous analysis of the same file in the
+     * index cache. This is called by the initial analyzer before it looks
+     * at its input, so that it can start from those results; it does file
+     * I/O, so it shouldn't be called on the event-handling thread.
+     * @return The cached results, or null if there aren't any usable ones.
+     * @see IndexCache
+     */
+    IndexCache loadIndexCache() {
+        File file = getFile();
+        if (file == null) return null;
+        try {
+            return IndexCache.load(file, getURI());
+        } catch (URISyntaxException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Saves the results of an analyzer into the index cache, if the analyzer
+     * is responsible for all the frames of the ttyrec, and has analyzed the
+     * whole of a local file. This is called by analyzers when they reach the
+     * end of their input.
+     * @param analyzer The analyzer whose results should be saved.
+     * @param format The format that the analyzer is analyzing.
+     * @return Whether the results were saved (or are unsaveable, because the
+     * input isn't a file); false if they should be saved later instead.
+     */
+    boolean cacheAnalysis(TtyrecAnalyzer analyzer,
+                          TtyrecAnalyzer.InputFormat format) {
+        File file = getFile();
+        if (file == null || rec.isStreaming()) return true;
+        if (analyzer != leadingEdgeAnalyze || backportAnalyze != null ||
+                bytestream.longSize() != file.length())
+            return false;
+        try {
+            IndexCache.save(file, getURI(), rec, format,
+                    analyzer.getSequenceNumber());
+        } catch (URISyntaxException ex) {
+            // can't be cached
+        }
+        return true;
+    }
+
     /**
      * Cancels all work on this source immediately. The source is unusable
      * after this, so it should generally only be called in preparation for
@@ -180,6 +235,15 @@ public abstract class TtyrecSource extends Thread {
             }
             leadingEdgeDecode = null;
         } catch (NullPointerException x) {}
+        try {
+            indexer.stopWorking();
+            try {
+                indexer.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            indexer = null;
+        } catch (NullPointerException x) {}
         interrupt();
         cancelIO();
         try {
@@ -218,9 +282,10 @@ public abstract class TtyrecSource extends Thread {
      * arrive, but none has yet. It should terminate if interrupted (which
      * would typically happen just before the object was destroyed).
      * <p>
-     * This method should call notifyAll() on the bytestream's monitor
-     * after adding new bytes to the end of the bytestream, so that workers
-     * waiting for more data can continue to run.
+     * Appending to the bytestream automatically wakes up workers waiting for
+     * more data. This method should call markComplete() on the bytestream
+     * once it has determined that no more data will arrive, so that workers
+     * waiting at the end of the bytestream can notice.
      * <p>
      * This method is also responsible for updating a few data on the
      * ttyrec itself: it must set the ttyrec's length offset (the length
@@ -245,6 +310,15 @@ public abstract class TtyrecSource extends Thread {
      */
     abstract public URI getURI() throws URISyntaxException;
 
+    /**
+     * The local file that this source is reading, if any. This is used to
+     * decide whether the results of analyzing the input can be cached.
+     * @return The file, or null if the input isn't a regular local file.
+     */
+    protected File getFile() {
+        return null;
+    }
+
     /**
      * Causes a leading-edge worker to be halted, with the matching backport
      * worker taking its place. Attempting to subsume a worker more than once
@@ -254,6 +328,10 @@ public abstract class TtyrecSource extends Thread {
      * @param overtaken The leading-edge worker to subsume.
      */
     public void subsumeWorker(TtyrecWorker overtaken) {
+        // The backport workers are read once, so that the checks below and
+        // the replacement agree even if the backport workers change.
+        TtyrecAnalyzer analyzeBackport;
+        TtyrecDecoder decodeBackport;
         synchronized (this) {
             if (leadingEdgeDecode == backportDecode &&
                     overtaken == leadingEdgeDecode)
@@ -261,20 +339,27 @@ public abstract class TtyrecSource extends Thread {
             if (leadingEdgeAnalyze == backportAnalyze &&
                     overtaken == leadingEdgeAnalyze)
                 {backportAnalyze = null; return;}
+            analyzeBackport = backportAnalyze;
+            decodeBackport = backportDecode;
         }
         synchronized (overtaken) {
             if (overtaken.isSubsumed()) return;
+            // If there's no backport worker to take over yet, leave the
+            // worker unsubsumed, so that a later call can try again.
+            if (overtaken instanceof TtyrecAnalyzer ? analyzeBackport == null
+                                                    : decodeBackport == null)
+                return;
             overtaken.setSubsumed(true);
         }
-        if (overtaken instanceof TtyrecAnalyzer && backportAnalyze != null &&
-            overtaken != backportAnalyze) {
+        if (overtaken instanceof TtyrecAnalyzer &&
+            overtaken != analyzeBackport) {
             if (debug) {
                 System.err.println("Subsuming analyze " + leadingEdgeAnalyze +
                         leadingEdgeAnalyze.hashCode());
             }
             synchronized (this) {
                 if (leadingEdgeAnalyze == overtaken || leadingEdgeAnalyze == null)
-                    leadingEdgeAnalyze = backportAnalyze;
+                    leadingEdgeAnalyze = analyzeBackport;
                 else
                     return;
             }
@@ -288,15 +373,15 @@ public abstract class TtyrecSource extends Thread {
             } catch (InterruptedException ex) {
                 Thread.currentThread().interrupt();
             }*/
-        } else if (overtaken instanceof TtyrecDecoder && backportDecode != null &&
-                   overtaken != backportDecode) {
+        } else if (overtaken instanceof TtyrecDecoder &&
+                   overtaken != decodeBackport) {
             if (debug) {
                 System.err.println("Subsuming decode " + leadingEdgeDecode +
                         leadingEdgeDecode.hashCode());
             }
             synchronized (this) {
                 if (leadingEdgeDecode == overtaken || leadingEdgeDecode == null)
-                    leadingEdgeDecode = backportDecode;
+                    leadingEdgeDecode = decodeBackport;
                 else
                     return;
             }
@@ -306,7 +391,7 @@ public abstract class TtyrecSource extends Thread {
                     backportDecode = null;
             }
             try {
-                leadingEdgeDecode.setPriority(MIN_PRIORITY);
+                leadingEdgeDecode.setPriority(TtyrecWorker.MIN_PRIORITY);
             } catch (NullPointerException x) {}
 /*            try {
                 if(Thread.currentThread() != overtaken) overtaken.join();
@@ -353,7 +438,8 @@ public abstract class TtyrecSource extends Thread {
      * @param worker The worker who called this method.
      */
     public synchronized void progressMade(TtyrecWorker worker) {
-        if (worker instanceof TtyrecAnalyzer) analyzeEventHappened = true;
+        if (worker instanceof TtyrecAnalyzer ||
+            worker instanceof TtyrecIndexer) analyzeEventHappened = true;
         if (worker instanceof TtyrecDecoder) decodeEventHappened = true;
         try {
             long leap = leadingEdgeAnalyze.getProgress();
@@ -472,7 +558,8 @@ public abstract class TtyrecSource extends Thread {
         }
         backportAnalyze = backport;
         try {
-            if (oldBackport != null && Thread.currentThread() != oldBackport)
+            if (oldBackport != null &&
+                    WorkerPool.currentWorker() != oldBackport)
                 oldBackport.join();
         } catch(InterruptedException x) {Thread.currentThread().interrupt();}
         backport.start();
@@ -496,7 +583,8 @@ public abstract class TtyrecSource extends Thread {
         }
         backportDecode = backport;
         try {
-            if (oldBackport != null && Thread.currentThread() != oldBackport)
+            if (oldBackport != null &&
+                    WorkerPool.currentWorker() != oldBackport)
                 oldBackport.join();
         } catch(InterruptedException x) {Thread.currentThread().interrupt();}
         backport.start();
@@ -583,6 +671,39 @@ public abstract class TtyrecSource extends Thread {
         return true;
     }
 
+    /**
+     * Works out how much processor time a worker should get, relative to
+     * other workers, when there isn't enough to go round. Decoders that the
+     * user is waiting for (because the frame being shown hasn't been decoded
+     * yet) get the most, as do analyzers if it hasn't been analyzed yet;
+     * leading-edge decoders whose work a backport decoder is going to redo
+     * get the least.
+     * @param worker One of this source's workers.
+     * @return The worker's share; one of the WorkerPool.SHARE_ constants.
+     * @see WorkerPool
+     */
+    int getShare(TtyrecWorker worker) {
+        int target = seekTarget;
+        if (worker instanceof TtyrecAnalyzer)
+            return target >= rec.getFrameCount() ? WorkerPool.SHARE_URGENT
+                                                 : WorkerPool.SHARE_NORMAL;
+        if (!(worker instanceof TtyrecDecoder))
+            return WorkerPool.SHARE_NORMAL;
+        if (target >= worker.getProgress()) {
+            try {
+                if (rec.getFrameAtIndex(target).getDecoderSeqNumber() <
+                        worker.getSequenceNumber())
+                    return WorkerPool.SHARE_URGENT;
+            } catch (IndexOutOfBoundsException ex) {
+                // not analyzed yet, so the analyzer's what's needed
+            }
+        }
+        if (worker.getPriority() == TtyrecWorker.MIN_PRIORITY &&
+                anotherThread(worker))
+            return WorkerPool.SHARE_LOW;
+        return WorkerPool.SHARE_NORMAL;
+    }
+
     /**
      * Gets the current backport analyzer.
      * @return The current backport analyzer.
@@ -617,6 +738,27 @@ public abstract class TtyrecSource extends Thread {
 
     void setWantedFrame(int i) {
         rec.setWantedFrame(i);
+        if (i >= 0) seekTo(i);
+    }
+
+    /**
+     * Tells the decoders which frame the user is looking at (or is about to
+     * look at). If that frame hasn't been decoded yet, the decoders skip
+     * ahead to decode it and the frames after it first, then go back to
+     * decode the frames they skipped.
+     * @param frame The index of the frame.
+     */
+    public void seekTo(int frame) {
+        seekTarget = frame;
+    }
+
+    /**
+     * Gets the frame that the decoders should decode first.
+     * @return The index of the frame last passed to seekTo, or -1 if there
+     * isn't one.
+     */
+    int getSeekTarget() {
+        return seekTarget;
     }
 
     /**
@@ -5,7 +5,7 @@
 
 package jettyplay;
 
-import java.util.Date;
+import java.util.concurrent.CountDownLatch;
 
 /**
  * Something capable of analyzing a Ttyrec in the background. This
@@ -25,9 +25,27 @@ import java.util.Date;
  * Nothing but the TtyrecWorker itself should wait on its monitor,
  * as otherwise there may be deadlocks on the worker, and spurious
  * wakeups on whatever else was waiting there.
+ * <p>
+ * TtyrecWorkers aren't threads of their own; once started, they run on the
+ * threads of the WorkerPool, which limits how many run at once. A worker
+ * that waits for something other than being unpaused (say, more input)
+ * should do so between calls to WorkerPool.beginWait() and
+ * WorkerPool.endWait(), so that other workers can run meanwhile.
  * @author ais523
+ * @see WorkerPool
  */
-public abstract class TtyrecWorker extends Thread {
+public abstract class TtyrecWorker implements Runnable {
+
+    /**
+     * The priority of workers that should get as little processor time as
+     * possible while other workers are doing the same job (a leading-edge
+     * decoder whose results a backport decoder is going to replace).
+     */
+    public static final int MIN_PRIORITY = Thread.MIN_PRIORITY;
+    /**
+     * The priority that workers start with.
+     */
+    public static final int MAX_PRIORITY = Thread.MAX_PRIORITY;
 
     /**
      * The TtyrecSource this TtyrecWorker is working for. The value of this
@@ -42,7 +60,7 @@ public abstract class TtyrecWorker extends Thread {
      * @param name The name of the thread that represents this worker..
      */
     public TtyrecWorker(TtyrecSource workingFor, int sequenceNumber, String name) {
-        super(name);
+        this.name = name;
         this.workingFor = workingFor;
         isPaused = true;
         isHalted = false;
@@ -63,6 +81,104 @@ public abstract class TtyrecWorker extends Thread {
      * iteration.
      */
     volatile protected boolean isHalted;
+    private final String name;
+    private volatile int priority;
+    private boolean started = false;
+    private boolean submitted = false;
+    private Thread thread = null; // the thread running this worker, if any
+    private final CountDownLatch finished = new CountDownLatch(1);
+
+    /**
+     * Starts this worker. As workers are created paused, it doesn't actually
+     * start running (or use up a thread) until it's unpaused or halted.
+     * @throws IllegalStateException If the worker was already started.
+     */
+    public synchronized void start() {
+        if (started)
+            throw new IllegalStateException("Worker already started");
+        started = true;
+        if (!isPaused || isHalted) submit();
+    }
+
+    /* Hands this worker to the pool, if it's been started and hasn't been
+     * already. Must be called with the monitor held. */
+    private void submit() {
+        if (!started || submitted) return;
+        submitted = true;
+        if (isHalted && isPaused) {
+            // It never ran, so there's nothing to stop.
+            finished.countDown();
+            return;
+        }
+        WorkerPool.execute(this);
+    }
+
+    /**
+     * Waits for this worker to finish running. This returns immediately if
+     * the worker was never started.
+     * @throws InterruptedException If the current thread is interrupted while
+     * waiting.
+     */
+    public void join() throws InterruptedException {
+        synchronized (this) {
+            if (!started) return;
+        }
+        WorkerPool.beginWait();
+        try {
+            finished.await();
+        } finally {
+            WorkerPool.endWait();
+        }
+    }
+
+    /* Called by the pool when it starts and stops running this worker. */
+    synchronized void attachThread(Thread thread) {
+        this.thread = thread;
+        if (thread != null && isHalted) thread.interrupt();
+    }
+
+    /* Called by the pool once this worker's run() method has returned. */
+    void finished() {
+        finished.countDown();
+    }
+
+    /**
+     * Interrupts the thread that this worker is running on, if it's running,
+     * so that it stops whatever it's waiting for.
+     */
+    public synchronized void interrupt() {
+        if (thread != null) thread.interrupt();
+    }
+
+    /**
+     * Gets the name of this worker, as used for the thread it runs on.
+     * @return The name of this worker.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Gets the priority of this worker. A worker at MIN_PRIORITY gets a
+     * smaller share of processor time while another worker is doing the
+     * same job.
+     * @return The priority, between MIN_PRIORITY and MAX_PRIORITY.
+     */
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * Changes the priority of this worker.
+     * @param priority The new priority, between MIN_PRIORITY and
+     * MAX_PRIORITY.
+     */
+    public synchronized void setPriority(int priority) {
+        if (priority < MIN_PRIORITY || priority > MAX_PRIORITY)
+            throw new IllegalArgumentException("Priority out of range");
+        this.priority = priority;
+        if (thread != null) thread.setPriority(priority);
+    }
     /**
      * Tells this TtyrecWorker to pause its work at a convenient
      * moment. A TtyrecWorker should not pause itself like this;
@@ -88,6 +204,7 @@ public abstract class TtyrecWorker extends Thread {
     public synchronized void stopWorking() {
         isHalted = true;
         if (isPaused) {
+            submit();
             isPaused = false;
             notify();
         } else
@@ -101,6 +218,7 @@ public abstract class TtyrecWorker extends Thread {
     public synchronized void resumeWorking() {
         if (!isPaused) return;
         isPaused = false;
+        submit();
         notify();
     }
     /**
@@ -109,42 +227,54 @@ public abstract class TtyrecWorker extends Thread {
      * if isPaused is set, either directly or via continueMainLoop().
      * It does not return until the worker is unpaused or halted.
      */
-    protected synchronized void hibernate() {
-        while (isPaused && !isHalted) {
-            try {
-                wait();
-            } catch (InterruptedException ex) {
-                // Just check again. Interrupting us is kind-of pointless
-                // because we should just be notified instead.
+    protected void hibernate() {
+        synchronized (this) {
+            if (!isPaused || isHalted) return;
+        }
+        // Not synchronized throughout, as getting a slot again can block.
+        WorkerPool.beginWait();
+        try {
+            synchronized (this) {
+                while (isPaused && !isHalted) {
+                    try {
+                        wait();
+                    } catch (InterruptedException ex) {
+                        // Just check again. Interrupting us is kind-of
+                        // pointless because we should just be notified
+                        // instead.
+                    }
+                }
             }
+        } finally {
+            WorkerPool.endWait();
         }
     }
-    private long timeAtLastContinue = 0;
     /**
      * A convenience method. If the main loop of a TtyrecWorker is written
      * as while(continueMainLoop()) { ... }, it will automatically obey the
      * part of the TtyrecWorker concerned with pausing and halting; it
      * does not return if the TtyrecWorker is paused until it is unpaused
      * again (or halted, which unpauses it), and its return value indicates
-     * whether to halt. It also delays a bit if the thread is set to run at
-     * minimum priority and there's another worker doing the same job.
+     * whether to halt. It also lets other workers run instead, if they're
+     * owed some processor time (see WorkerPool).
      * @return false if the TtyrecWorker has been halted, false otherwise.
      */
     protected boolean continueMainLoop() {
         hibernate();
-        long talc = timeAtLastContinue;
-        timeAtLastContinue = new Date().getTime();
-        if (getPriority() == MIN_PRIORITY && workingFor.anotherThread(this)) {
-            try {
-                if (talc > 0)
-                    Thread.sleep(timeAtLastContinue-talc);
-                timeAtLastContinue = new Date().getTime();
-            } catch(InterruptedException ex) {
-            }
-        }
+        WorkerPool.yieldSlot();
         return !isHalted;
     }
 
+    /**
+     * Gets the share of processor time that this worker should get when
+     * there isn't enough to go round.
+     * @return The share, as worked out by the TtyrecSource.
+     * @see TtyrecSource#getShare(TtyrecWorker)
+     */
+    int getShare() {
+        return workingFor.getShare(this);
+    }
+
     /**
      * An arbitrary number used to distinguish this worker from other workers.
      * Should probably not be changed after it is set the first time.
@@ -0,0 +1,106 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package jettyplay;
+
+/**
+ * Checks whether a sequence of bytes, split across any number of frames, is
+ * valid UTF-8. The validator remembers any partial character at the end of
+ * one frame, so that it can be completed by the next; this means that each
+ * byte is only looked at once, and nothing needs to be allocated or decoded
+ * to check a frame.
+ * <p>
+ * The rules are the same as those of Java's UTF-8 decoder: overlong forms,
+ * surrogates, and codepoints above U+10FFFF are all invalid.
+ * @author ais523
+ */
+public class Utf8Validator {
+    private static final byte[] NO_BYTES = new byte[0];
+
+    private final byte[] pending = new byte[3]; // a partial character
+    private int pendingCount = 0;
+    private int needed = 0; // continuation bytes still needed
+    // the range allowed for the next continuation byte, as unsigned values
+    private int nextMin = 0x80;
+    private int nextMax = 0xbf;
+
+    /**
+     * Checks the next frame of input. If the frame is valid UTF-8 (other than
+     * possibly ending with an incomplete character), the incomplete character
+     * is remembered, to be continued by the next frame.
+     * @param data An array containing the frame.
+     * @param off The index in data at which the frame starts.
+     * @param len The number of bytes in the frame.
+     * @return The number of bytes at the end of the frame that form an
+     * incomplete character (and so must be chopped off to decode the frame on
+     * its own), or -1 if the frame is not valid UTF-8. In the latter case, the
+     * state of the validator is reset.
+     */
+    public int validate(byte[] data, int off, int len) {
+        int end = off + len;
+        for (int i = off; i < end; i++) {
+            int b = data[i] & 0xff;
+            if (needed > 0) {
+                if (b < nextMin || b > nextMax) {
+                    reset();
+                    return -1;
+                }
+                nextMin = 0x80;
+                nextMax = 0xbf;
+                if (--needed == 0) pendingCount = 0;
+                else pending[pendingCount++] = (byte) b;
+                continue;
+            }
+            if (b < 0x80) continue;
+            if (b < 0xc2 || b > 0xf4) {
+                // a stray continuation byte, an overlong lead byte, or a
+                // lead byte for a codepoint beyond U+10FFFF
+                reset();
+                return -1;
+            }
+            if (b < 0xe0) needed = 1;
+            else if (b < 0xf0) needed = 2;
+            else needed = 3;
+            // Some lead bytes restrict the range of the following byte.
+            if (b == 0xe0) nextMin = 0xa0;      // overlong
+            else if (b == 0xed) nextMax = 0x9f; // surrogates
+            else if (b == 0xf0) nextMin = 0x90; // overlong
+            else if (b == 0xf4) nextMax = 0x8f; // beyond U+10FFFF
+            pending[0] = (byte) b;
+            pendingCount = 1;
+        }
+        // The incomplete character can't start before the frame does, as it
+        // would then be impossible to chop it off the frame.
+        if (pendingCount > len) {
+            reset();
+            return -1;
+        }
+        return pendingCount;
+    }
+
+    /**
+     * Returns the bytes of the incomplete character at the end of the input so
+     * far, i.e. those which should be prepended to the next frame to decode it.
+     * @return The bytes of the incomplete character; this is a new array
+     * unless it's empty.
+     */
+    public byte[] getPendingBytes() {
+        if (pendingCount == 0) return NO_BYTES;
+        byte[] b = new byte[pendingCount];
+        System.arraycopy(pending, 0, b, 0, pendingCount);
+        return b;
+    }
+
+    /**
+     * Forgets any incomplete character, so that the next frame is checked as
+     * if it were the start of the input.
+     */
+    public void reset() {
+        pendingCount = 0;
+        needed = 0;
+        nextMin = 0x80;
+        nextMax = 0xbf;
+    }
+}
@@ -28,8 +28,6 @@ package jettyplay;
 
 import java.nio.CharBuffer;
 import java.util.Arrays;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -46,9 +44,10 @@ public class VDUBuffer implements Cloneable {
   public final static int debug = 0;
 
   protected int height, width;                          /* rows and columns */
-  char[][] charArray;                            /* contains the characters */
-  long[][] charAttributes;                       /* contains character attrs */
-  private boolean[] needLazyCloning;            /* which lines need cloning */
+  private char[][] charArray;                    /* contains the characters */
+  private long[][] charAttributes;               /* contains character attrs */
+  private int[][] packedRows;          /* or both at once, see PackedRow */
+  private boolean[] needLazyCloning;   /* which lines are from the RowPool */
   protected int bufSize;
   protected int maxBufSize;                                  /* buffer sizes */
   protected int screenBase;                      /* the actual screen start */
@@ -173,6 +172,27 @@ public class VDUBuffer implements Cloneable {
     charAttributes[screenBase + l][c] = attributes;
   }
 
+  /**
+   * Put a run of characters at a specific position, all with the same
+   * attributes. This does the same as calling putChar for each character in
+   * turn, but is faster.
+   * @param c x-coordinate (column) of the first character
+   * @param l y-coordinate (line)
+   * @param s the string containing the characters
+   * @param start the index of the first character in s
+   * @param len the number of characters; they must fit on the line
+   * @param attributes the character attributes
+   * @see #putChar
+   */
+  public void putChars(int c, int l, String s, int start, int len,
+                       long attributes) {
+    c = checkBounds(c, 0, width - 1);
+    l = checkBounds(l, 0, height - 1);
+    cloneCheck(screenBase + l);
+    s.getChars(start, start + len, charArray[screenBase + l], c);
+    Arrays.fill(charAttributes[screenBase + l], c, c + len, attributes);
+  }
+
   /**
    * Get the character at the specified position.
    * @param c x-coordinate (column)
@@ -183,6 +203,8 @@ public class VDUBuffer implements Cloneable {
   public char getChar(int c, int l) {
     c = checkBounds(c, 0, width - 1);
     l = checkBounds(l, 0, height - 1);
+    if (packedRows[screenBase + l] != null)
+      return PackedRow.charAt(packedRows[screenBase + l], c);
     return charArray[screenBase + l][c];
   }
 
@@ -196,9 +218,49 @@ public class VDUBuffer implements Cloneable {
   public long getAttributes(int c, int l) {
     c = checkBounds(c, 0, width - 1);
     l = checkBounds(l, 0, height - 1);
+    if (packedRows[screenBase + l] != null)
+      return PackedRow.attributesAt(packedRows[screenBase + l], c);
     return charAttributes[screenBase + l][c];
   }
 
+  /**
+   * Gets the number of rows in the buffer, including the scrollback.
+   * @return The number of rows that can be passed to copyRow.
+   */
+  int getRowCount() {
+    return charArray.length;
+  }
+
+  /**
+   * Copies the start of a row of the buffer (which may be in the scrollback)
+   * into the given arrays, unpacking it if necessary.
+   * @param row The row of the buffer, counting from the top of the
+   * scrollback.
+   * @param chars The array to copy the characters into.
+   * @param attributes The array to copy the attributes into.
+   * @param length The number of cells to copy.
+   */
+  void copyRow(int row, char[] chars, long[] attributes, int length) {
+    if (packedRows[row] != null) {
+      PackedRow.unpack(packedRows[row], chars, attributes, length);
+    } else {
+      System.arraycopy(charArray[row], 0, chars, 0, length);
+      System.arraycopy(charAttributes[row], 0, attributes, 0, length);
+    }
+  }
+
+  /**
+   * Gets an object that represents the contents of a row; two rows of
+   * read-only buffers that give the same object have the same contents.
+   * @param row The row of the buffer, counting from the top of the
+   * scrollback.
+   * @return The object representing the row.
+   */
+  Object getRowIdentity(int row) {
+    if (packedRows[row] != null) return packedRows[row];
+    return charAttributes[row];
+  }
+
   /**
    * Insert a character at a specific position on the screen.
    * All character right to from this position will be moved one to the right.
@@ -220,6 +282,7 @@ public class VDUBuffer implements Cloneable {
   public void insertChar(int c, int l, char ch, long attributes) {
     c = checkBounds(c, 0, width - 1);
     l = checkBounds(l, 0, height - 1);
+    cloneCheck(screenBase + l);
     System.arraycopy(charArray[screenBase + l], c,
                      charArray[screenBase + l], c + 1, width - c - 1);
     System.arraycopy(charAttributes[screenBase + l], c,
@@ -240,6 +303,7 @@ public class VDUBuffer implements Cloneable {
   public void deleteChar(int c, int l) {
     c = checkBounds(c, 0, width - 1);
     l = checkBounds(l, 0, height - 1);
+    cloneCheck(screenBase + l);
     if (c < width - 1) {
       System.arraycopy(charArray[screenBase + l], c + 1,
                        charArray[screenBase + l], c, width - c - 1);
@@ -346,11 +410,12 @@ public class VDUBuffer implements Cloneable {
    * @see #redraw
    */
   public synchronized void insertLine(int l, int n, boolean scrollDown) {
-    strictClone();
     l = checkBounds(l, 0, height - 1);
 
     char cbuf[][] = null;
     long abuf[][] = null;
+    int pbuf[][] = null;
+    boolean lbuf[] = null;
     int offset = 0;
     int oldBase = screenBase;
 
@@ -369,20 +434,14 @@ public class VDUBuffer implements Cloneable {
 
     if (scrollDown) {
       if (n > (bottom - top)) n = (bottom - top);
-      int size = bottom - l - (n - 1);
-      if (size < 0) size = 0;
-      cbuf = new char[size][width];
-      abuf = new long[size][width];
-
-      System.arraycopy(charArray, oldBase + l, cbuf, 0, bottom - l - (n - 1));
-      System.arraycopy(charAttributes, oldBase + l,
-                       abuf, 0, bottom - l - (n - 1));
-      System.arraycopy(cbuf, 0, charArray, oldBase + l + n,
-                       bottom - l - (n - 1));
-      System.arraycopy(abuf, 0, charAttributes, oldBase + l + n,
-                       bottom - l - (n - 1));
       cbuf = charArray;
       abuf = charAttributes;
+      pbuf = packedRows;
+      lbuf = needLazyCloning;
+
+      // Rows are moved, not copied, so they stay shared if they were.
+      copyRows(oldBase + l, cbuf, abuf, pbuf, lbuf, oldBase + l + n,
+               bottom - l - (n - 1));
     } else {
         if (n > (bottom - top) + 1) n = (bottom - top) + 1;
         if (bufSize < maxBufSize) {
@@ -401,58 +460,47 @@ public class VDUBuffer implements Cloneable {
 
           cbuf = new char[bufSize][width];
           abuf = new long[bufSize][width];
+          pbuf = new int[bufSize][];
+          lbuf = new boolean[bufSize];
         } else {
           offset = n;
           cbuf = charArray;
           abuf = charAttributes;
+          pbuf = packedRows;
+          lbuf = needLazyCloning;
         }
         // copy anything from the top of the buffer (+offset) to the new top
         // up to the screenBase.
         if (oldBase > 0) {
-          System.arraycopy(charArray, offset,
-                           cbuf, 0,
-                           oldBase - offset);
-          System.arraycopy(charAttributes, offset,
-                           abuf, 0,
-                           oldBase - offset);
+          copyRows(offset,
+                   cbuf, abuf, pbuf, lbuf, 0,
+                   oldBase - offset);
         }
         // copy anything from the top of the screen (screenBase) up to the
         // topMargin to the new screen
         if (top > 0) {
-          System.arraycopy(charArray, oldBase,
-                           cbuf, screenBase,
-                           top);
-          System.arraycopy(charAttributes, oldBase,
-                           abuf, screenBase,
-                           top);
+          copyRows(oldBase,
+                   cbuf, abuf, pbuf, lbuf, screenBase,
+                   top);
         }
         // copy anything from the topMargin up to the amount of lines inserted
         // to the gap left over between scrollback buffer and screenBase
         if (oldBase > 0) {
-          System.arraycopy(charArray, oldBase + top,
-                           cbuf, oldBase - offset,
-                           n);
-          System.arraycopy(charAttributes, oldBase + top,
-                           abuf, oldBase - offset,
-                           n);
+          copyRows(oldBase + top,
+                   cbuf, abuf, pbuf, lbuf, oldBase - offset,
+                   n);
         }
         // copy anything from topMargin + n up to the line linserted to the
         // topMargin
-        System.arraycopy(charArray, oldBase + top + n,
-                         cbuf, screenBase + top,
-                         l - top - (n - 1));
-        System.arraycopy(charAttributes, oldBase + top + n,
-                         abuf, screenBase + top,
-                         l - top - (n - 1));
+        copyRows(oldBase + top + n,
+                 cbuf, abuf, pbuf, lbuf, screenBase + top,
+                 l - top - (n - 1));
         //
         // copy the all lines next to the inserted to the new buffer
         if (l < height - 1) {
-          System.arraycopy(charArray, oldBase + l + 1,
-                           cbuf, screenBase + l + 1,
-                           (height - 1) - l);
-          System.arraycopy(charAttributes, oldBase + l + 1,
-                           abuf, screenBase + l + 1,
-                           (height - 1) - l);
+          copyRows(oldBase + l + 1,
+                   cbuf, abuf, pbuf, lbuf, screenBase + l + 1,
+                   (height - 1) - l);
         }
     }
 
@@ -461,12 +509,27 @@ public class VDUBuffer implements Cloneable {
 
 
     for (int i = 0; i < n; i++) {
-      cbuf[(screenBase + l) + (scrollDown ? i : -i)] = new char[width];
-      abuf[(screenBase + l) + (scrollDown ? i : -i)] = new long[width];
+      int row = (screenBase + l) + (scrollDown ? i : -i);
+      cbuf[row] = new char[width];
+      abuf[row] = new long[width];
+      pbuf[row] = null;
+      lbuf[row] = false;
     }
 
     charArray = cbuf;
     charAttributes = abuf;
+    packedRows = pbuf;
+    needLazyCloning = lbuf;
+  }
+
+  /* Moves rows of the buffer to the given position in the given arrays
+   * (which may be the buffer's own), along with whether they're shared. */
+  private void copyRows(int from, char[][] cbuf, long[][] abuf, int[][] pbuf,
+                        boolean[] lbuf, int to, int count) {
+    System.arraycopy(charArray, from, cbuf, to, count);
+    System.arraycopy(charAttributes, from, abuf, to, count);
+    System.arraycopy(packedRows, from, pbuf, to, count);
+    System.arraycopy(needLazyCloning, from, lbuf, to, count);
   }
 
   /**
@@ -477,17 +540,17 @@ public class VDUBuffer implements Cloneable {
    * @see #deleteLine
    */
   public void deleteLine(int l) {
-    strictClone();
     l = checkBounds(l, 0, height - 1);
 
     int bottom = (l > bottomMargin ? height - 1:
             (l < topMargin?topMargin:bottomMargin + 1));
-    System.arraycopy(charArray, screenBase + l + 1,
-                     charArray, screenBase + l, bottom - l - 1);
-    System.arraycopy(charAttributes, screenBase + l + 1,
-                     charAttributes, screenBase + l, bottom - l - 1);
+    copyRows(screenBase + l + 1,
+             charArray, charAttributes, packedRows, needLazyCloning,
+             screenBase + l, bottom - l - 1);
     charArray[screenBase + bottom - 1] = new char[width];
     charAttributes[screenBase + bottom - 1] = new long[width];
+    packedRows[screenBase + bottom - 1] = null;
+    needLazyCloning[screenBase + bottom - 1] = false;
   }
 
   /**
@@ -503,7 +566,6 @@ public class VDUBuffer implements Cloneable {
    * @see #redraw
    */
   public void deleteArea(int c, int l, int w, int h, long curAttr) {
-    strictClone();
     c = checkBounds(c, 0, width - 1);
     l = checkBounds(l, 0, height - 1);
 
@@ -512,6 +574,7 @@ public class VDUBuffer implements Cloneable {
 
     for (int i = 0; i < w; i++) abuf[i] = curAttr;
     for (int i = 0; i < h && l + i < height; i++) {
+      cloneCheck(screenBase + l + i);
       System.arraycopy(cbuf, 0, charArray[screenBase + l + i], c, w);
       System.arraycopy(abuf, 0, charAttributes[screenBase + l + i], c, w);
     }
@@ -529,7 +592,6 @@ public class VDUBuffer implements Cloneable {
    * @see #redraw
    */
   public void deleteArea(int c, int l, int w, int h) {
-    strictClone();
     c = checkBounds(c, 0, width - 1);
     l = checkBounds(l, 0, height - 1);
 
@@ -537,6 +599,7 @@ public class VDUBuffer implements Cloneable {
     long abuf[] = new long[w];
 
     for (int i = 0; i < h && l + i < height; i++) {
+      cloneCheck(screenBase + l + i);
       System.arraycopy(cbuf, 0, charArray[screenBase + l + i], c, w);
       System.arraycopy(abuf, 0, charAttributes[screenBase + l + i], c, w);
     }
@@ -654,6 +717,7 @@ public class VDUBuffer implements Cloneable {
   public void setBufferSize(int amount) {
     if (amount < height) amount = height;
     if (amount < maxBufSize) {
+      strictClone();
       char cbuf[][] = new char[amount][width];
       long abuf[][] = new long[amount][width];
       int copyStart = bufSize - amount < 0 ? 0 : bufSize - amount;
@@ -664,6 +728,8 @@ public class VDUBuffer implements Cloneable {
         System.arraycopy(charAttributes, copyStart, abuf, 0, copyCount);
       charArray = cbuf;
       charAttributes = abuf;
+      packedRows = new int[amount][];
+      needLazyCloning = new boolean[amount];
       bufSize = copyCount;
       screenBase = bufSize - height;
       windowBase = screenBase;
@@ -691,6 +757,21 @@ public class VDUBuffer implements Cloneable {
     return maxBufSize;
   }
 
+  /**
+   * Estimates how much memory this buffer uses. This is an upper bound, as
+   * rows are often shared with other read-only buffers.
+   * @return The estimated size of the buffer, in bytes.
+   */
+  public long estimateMemoryUse() {
+    long size = 256;
+    for (int i = 0; i < charArray.length; i++) {
+      // A packed row is one int per cell; a wide row is a char plus a long
+      // per cell, in two arrays.
+      size += packedRows[i] != null ? width * 4L + 16 : width * 10L + 48;
+    }
+    return size;
+  }
+
   /**
    * Change the size of the screen. This will include adjustment of the
    * scrollback buffer. Is safe to call even on a buffer that has been
@@ -728,16 +809,13 @@ public class VDUBuffer implements Cloneable {
     abuf = new long[bufSize][w];
 
     if (charArray != null && charAttributes != null) {
-      for (int i = 0; i < bsize && i < bufSize; i++) {
-        System.arraycopy(charArray[i], 0, cbuf[i], 0,
-                         w < width ? w : width);
-        System.arraycopy(charAttributes[i], 0, abuf[i], 0,
-                         w < width ? w : width);
-      }
+      for (int i = 0; i < bsize && i < bufSize; i++)
+        copyRow(i, cbuf[i], abuf[i], w < width ? w : width);
     }
 
     charArray = cbuf;
     charAttributes = abuf;
+    packedRows = new int[bufSize][];
     needLazyCloning = new boolean[bufSize];
     width = w;
     height = h;
@@ -771,34 +849,31 @@ public class VDUBuffer implements Cloneable {
       // Nothing for now...
   }
 
+    /* The clone gets its own row table, which is small, as vt320 keeps no
+     * scrollback. Rows from the RowPool are shared, and copied when they're
+     * next written to; any other rows still belong to this buffer, so the
+     * clone gets copies of them. This buffer isn't written to, as it may be
+     * a read-only state that other threads are cloning at the same time. */
     @Override
     public Object clone() throws CloneNotSupportedException {
         VDUBuffer b = (VDUBuffer) super.clone();
-        b.cloneStorage();
-        return b;
-    }
-
-    private void cloneStorage() {
-        charArray = charArray.clone();
-        charAttributes = charAttributes.clone();
+        b.charArray = charArray.clone();
+        b.charAttributes = charAttributes.clone();
+        b.packedRows = packedRows.clone();
+        b.needLazyCloning = needLazyCloning.clone();
         for (int i = 0; i < charArray.length; i++) {
-            needLazyCloning[i] = true;
+            if (!needLazyCloning[i]) {
+                b.charArray[i] = charArray[i].clone();
+                b.charAttributes[i] = charAttributes[i].clone();
+            }
         }
+        return b;
     }
 
-    private static Map<Integer,char[]> charArrayShared
-            = new ConcurrentHashMap<>(100000,0.5f,1);
-    private static Map<Integer,long[]> charAttributesShared
-            = new ConcurrentHashMap<>(100000,0.5f,1);
+    private static final RowPool rowPool = new RowPool(131072);
 
     public static void resetCaches() {
-        try {
-            charArrayShared.clear();
-            charAttributesShared.clear();
-        } catch (UnsupportedOperationException ex) {
-            charArrayShared = new ConcurrentHashMap<>(100000,0.5f,1);
-            charAttributesShared = new ConcurrentHashMap<>(100000,0.5f,1);
-        }
+        rowPool.clear();
         System.runFinalization();
         System.gc();
     }
@@ -808,46 +883,47 @@ public class VDUBuffer implements Cloneable {
      *  after this is called, any attempt to modify it has undefined
      *  behaviour. (Clones of it can still be modified, though.) The
      *  main purpose of this is to save on memory, as it tries to share
-     *  memory with other read-only VDUBuffers.
+     *  memory with other read-only VDUBuffers, and to pack rows where
+     *  possible.
      */
     void makeReadOnly() {
+        internRows();
+    }
+
+    /**
+     *  Shares this VDUBuffer's rows with other read-only VDUBuffers where
+     *  possible, as makeReadOnly() does, but leaves it modifiable; the
+     *  shared rows are copied again when they're next written to.
+     */
+    void internRows() {
         for (int i = 0; i < charArray.length; i++) {
             /* We can skip the deduplication if the row is still
-             * marked as needing lazy cloning, because that means it's
-             * already in deduplicated form. */
+             * marked as needing lazy cloning, because that means it came
+             * from the pool and hasn't been written to since. */
             if (!needLazyCloning[i]) {
-                String ca = new String(charArray[i]);
-                Integer cah = ca.hashCode();
-                char[] x = charArrayShared.get(cah);
-                if (x == null || !Arrays.equals(x, charArray[i])) {
-                    /* A string we haven't seen before; record where it
-                     * is for future reference. */
-                    charArrayShared.put(cah, charArray[i]);
-                    charAttributesShared.put(cah, charAttributes[i]);
-                } else {
-                    /* We've seen the string before, so deduplicate it.
-                     * Have we seen its colouring before? */
-                    charArray[i] = x;
-                    long[] y = charAttributesShared.get(cah);
-                    if (Arrays.equals(charAttributes[i],y)) {
-                        /* Yes, deduplicate that too. */
-                        charAttributes[i] = y;
-                    } else {
-                        /* Assume the newer colouring for this string is
-                         * more likely to come up later than the older
-                         * colouring. */
-                        charAttributesShared.put(cah, charAttributes[i]);
-                    }
-                }
+                RowPool.Row r = rowPool.intern(charArray[i], charAttributes[i]);
+                charArray[i] = r.chars;
+                charAttributes[i] = r.attributes;
+                packedRows[i] = r.packed;
+                needLazyCloning[i] = true;
             }
         }
-        if (charArrayShared.size() > 99000) resetCaches();
     }
 
+    /* Makes a row safe to modify. Packed rows are only ever shared, so this
+     * is also where they're unpacked. */
     private void cloneCheck(int i) {
         if(needLazyCloning[i]) {
-            charArray[i] = charArray[i].clone();
-            charAttributes[i] = charAttributes[i].clone();
+            if (packedRows[i] != null) {
+                charArray[i] = new char[width];
+                charAttributes[i] = new long[width];
+                PackedRow.unpack(packedRows[i], charArray[i],
+                                 charAttributes[i], width);
+                packedRows[i] = null;
+            } else {
+                charArray[i] = charArray[i].clone();
+                charAttributes[i] = charAttributes[i].clone();
+            }
             needLazyCloning[i] = false;
         }
     }
@@ -860,7 +936,10 @@ public class VDUBuffer implements Cloneable {
 
     boolean containsPattern(Pattern p) {
         Matcher m = p.matcher("");
-        for (char[] line: charArray) {
+        char[] line = new char[width];
+        long[] attributes = new long[width];
+        for (int i = 0; i < charArray.length; i++) {
+            copyRow(i, line, attributes, width);
             m.reset(CharBuffer.wrap(line));
             if (m.find()) return true;
         }
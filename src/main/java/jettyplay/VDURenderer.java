@@ -10,7 +10,12 @@ import java.awt.Font;
 import java.awt.FontMetrics;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
+import java.awt.Rectangle;
 import java.awt.RenderingHints;
+import java.awt.Shape;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
@@ -100,6 +105,7 @@ public class VDURenderer {
     /** the VDU buffer */
     private VDUBuffer buffer;
     private Font normalFont; /* normal font */
+    private Font boldFont; /* normalFont, in bold */
     private FontMetrics fm; /* current font metrics */
     private int charWidth; /* current width of a char */
     private int charHeight; /* current height of a char */
@@ -111,7 +117,26 @@ public class VDURenderer {
     /*    private BufferedImage backingStore = null;
     private int backingStoreRows = 0;
     private int backingStoreColumns = 0;*/
+    /* which rows (from 1) have changed since they were last drawn; update[0]
+     * means that all of them have */
     private boolean[] update;
+    private char[] rowChars = new char[0]; /* row being drawn */
+    private long[] rowAttributes = new long[0];
+    /* images of characters, so they don't need laying out every redraw */
+    private final GlyphAtlas atlas = new GlyphAtlas();
+    /* the layout of the pixels passed to redraw(byte[], ...) */
+    private int scanlineStride;
+    private int pixelStride;
+    private int[] bandOffsets;
+    /* what those pixels currently show, so unchanged rows can be skipped */
+    private byte[] shownPixels = null;
+    private int shownDrawWidth;
+    private int shownDrawHeight;
+    private boolean shownAllowBold;
+    /* which cells changed between the last two buffers set, and between
+     * the last two buffers drawn onto pixels */
+    private final ScreenDiff bufferChanges = new ScreenDiff();
+    private final ScreenDiff pixelChanges = new ScreenDiff();
     /** A list of colors used for representation of the display */
     private Color[] color = {
         new Color(0, 0, 0),
@@ -394,6 +419,19 @@ public class VDURenderer {
         new Color(0xe4e4e4),
         new Color(0xeeeeee),
     };
+    /* The colors above, as RGB values, which is how redraw() works with
+     * them; an RGB value of 0 means a null color, as every color has its
+     * alpha set. */
+    private final int[] fgTable = new int[256];
+    private final int[] bgTable = new int[256];
+    private final int[] boldTable = new int[9];
+    private int defaultFg;
+    private int defaultBg;
+    private int boldColor;
+    private int invertColor;
+    private Color[] colorTablesFor = null; /* what the tables were made from */
+    /* recently used colors, for toColor(); this must be a power of 2 long */
+    private final Color[] colorCache = new Color[256];
 
     /**
      * Creates a new VDU renderer with a default font.
@@ -420,44 +458,82 @@ public class VDURenderer {
         textAntialiasingType = RenderingHints.VALUE_TEXT_ANTIALIAS_ON;
     }
 
+    /* How brighten() and darken() change each of the red, green and blue
+     * components of a color. */
+    private static final int[] BRIGHTEN = new int[256];
+    private static final int[] DARKEN = new int[256];
+    static {
+        for (int i = 0; i < 256; i++) {
+            BRIGHTEN[i] = (int) Math.min((i + 29) * 1.1, 255.0);
+            DARKEN[i] = (int) Math.max(i * 0.9 - 29, 0.0);
+        }
+    }
+
     /**
      * Create a color representation that is brighter than the standard
      * color but not what we would like to use for bold characters.
-     * @param clr the standard color
-     * @return the new brighter color
+     * @param rgb the standard color, as an RGB value
+     * @return the new brighter color, as an RGB value
      */
-    private Color brighten(Color clr) {
-        int r;
-        int g;
-        int b;
-        r = (int) min((clr.getRed() + 29) * 1.1, 255.0);
-        g = (int) min((clr.getGreen() + 29) * 1.1, 255.0);
-        b = (int) min((clr.getBlue() + 29) * 1.1, 255.0);
-        return new Color(r, g, b);
+    private static int brighten(int rgb) {
+        return 0xff000000 | BRIGHTEN[(rgb >> 16) & 0xff] << 16
+                | BRIGHTEN[(rgb >> 8) & 0xff] << 8 | BRIGHTEN[rgb & 0xff];
     }
 
     /**
      * Create a color representation that is darker than the standard
      * color but not what we would like to use for bold characters.
-     * @param clr the standard color
-     * @return the new darker color
+     * @param rgb the standard color, as an RGB value
+     * @return the new darker color, as an RGB value
      */
-    private Color darken(Color clr) {
-        int r;
-        int g;
-        int b;
-        r = (int) max(clr.getRed() * 0.9 - 29, 0.0);
-        g = (int) max(clr.getGreen() * 0.9 - 29, 0.0);
-        b = (int) max(clr.getBlue() * 0.9 - 29, 0.0);
-        return new Color(r, g, b);
+    private static int darken(int rgb) {
+        return 0xff000000 | DARKEN[(rgb >> 16) & 0xff] << 16
+                | DARKEN[(rgb >> 8) & 0xff] << 8 | DARKEN[rgb & 0xff];
     }
 
-    private double max(double f1, double f2) {
-        return (f1 < f2) ? f2 : f1;
+    /**
+     * Works out the RGB values of every color that can be drawn in (apart
+     * from 24-bit colors), so that they don't have to be worked out again
+     * for every character. This must be called whenever color changes.
+     */
+    private void updateColorTables() {
+        for (int i = 0; i < 256; i++) {
+            if (i < 8) {
+                fgTable[i] = color[i].getRGB();
+                bgTable[i] = darken(color[i].getRGB());
+            } else {
+                fgTable[i] = xterm_256_colors[i].getRGB();
+                bgTable[i] = fgTable[i];
+            }
+        }
+        // boldTable[0] is for characters with no foreground color
+        for (int i = 0; i < boldTable.length; i++) {
+            int index = i - 1 + COLOR_FIRST_BOLD_REPLACEMENT;
+            boldTable[i] = index < color.length && color[index] != null
+                    ? color[index].getRGB() : 0;
+        }
+        defaultFg = darken(color[COLOR_FG_STD].getRGB());
+        defaultBg = darken(color[COLOR_BG_STD].getRGB());
+        boldColor = color[COLOR_BOLD] == null ? 0 : color[COLOR_BOLD].getRGB();
+        invertColor = color[COLOR_INVERT] == null
+                ? 0 : color[COLOR_INVERT].getRGB();
+        colorTablesFor = color;
     }
 
-    private double min(double f1, double f2) {
-        return (f1 < f2) ? f1 : f2;
+    /**
+     * Gets a Color object for an RGB value, reusing an earlier one with
+     * the same value where possible.
+     * @param rgb The RGB value.
+     * @return A color with that RGB value.
+     */
+    private Color toColor(int rgb) {
+        int slot = (rgb ^ rgb >>> 8 ^ rgb >>> 16) & (colorCache.length - 1);
+        Color c = colorCache[slot];
+        if (c == null || c.getRGB() != rgb) {
+            c = new Color(rgb);
+            colorCache[slot] = c;
+        }
+        return c;
     }
 
     /**
@@ -465,31 +541,19 @@ public class VDURenderer {
      * @param buffer new buffer
      */
     public void setVDUBuffer(VDUBuffer buffer) {
-        VDUBuffer old = this.buffer;
-        if (buffer == null) {
-            this.buffer = new vt320();
-            update = new boolean[this.buffer.charAttributes.length + 1];
-        } else {
-            this.buffer = buffer;
-            update = new boolean[buffer.charAttributes.length + 1];
-            if (old != null && old.charAttributes.length == buffer.charAttributes.length) {
-                for (int i = 0; i < old.charAttributes.length; i++) {
-                    /* Due to the deduplication method used, if the
-                     * charAttributes pointers are the same, then so is ther
-                     * charArray. */
-                    if (old.charAttributes[i] != buffer.charAttributes[i]) {
-                        update[i + 1] = true;
-                    } else {
-                        update[i + 1] = false;
-                    }
-                }
-                if (old != null) {
-                    update[old.cursorY + 1] = true;
-                    update[buffer.cursorY + 1] = true;
-                }
-            } else {
-                update[0] = true;
-            }
+        this.buffer = buffer == null ? new vt320() : buffer;
+        // Rows changed by earlier buffers might not have been drawn yet, so
+        // add to the rows to update rather than replacing them.
+        if (update == null || update.length != this.buffer.height + 1) {
+            update = new boolean[this.buffer.height + 1];
+            update[0] = true;
+        }
+        bufferChanges.update(this.buffer);
+        if (bufferChanges.isComplete()) {
+            update[0] = true;
+        }
+        for (int i = 0; i < bufferChanges.getChangeCount(); i++) {
+            update[bufferChanges.getChangedRow(i) + 1] = true;
         }
     }
 
@@ -507,7 +571,12 @@ public class VDURenderer {
      * @param g A Graphics object used to recalculate font sizes
      */
     public void setFont(Font font, Graphics g) {
+        boolean changed = !font.equals(normalFont);
+        int oldCharWidth = charWidth;
+        int oldCharHeight = charHeight;
+        int oldCharDescent = charDescent;
         normalFont = font;
+        boldFont = font.deriveFont(Font.BOLD);
         if (g != null) {
             fm = g.getFontMetrics(normalFont);
         }
@@ -516,7 +585,9 @@ public class VDURenderer {
             charHeight = fm.getHeight();
             charDescent = fm.getDescent();
         }
-        if (update != null) {
+        changed |= charWidth != oldCharWidth || charHeight != oldCharHeight
+                || charDescent != oldCharDescent;
+        if (update != null && changed) {
             update[0] = true;
         }
     }
@@ -572,16 +643,37 @@ public class VDURenderer {
     }
 
     /**
-     * Redraw all lines on the given Graphics.
+     * Redraw all lines on the given Graphics (that are within its clip).
      * @param g The Graphics to draw on.
      * @param w The amount of width of the Graphics to use.
      * @param h The amount of height of the Graphics to use.
      */
     public void redraw(Graphics g, int w, int h) {
-        update[0] = true;
         redraw(g, false, w, h);
     }
 
+    /**
+     * Redraw the current VDU buffer straight into an array of pixels, with
+     * 8 bits per sample, rather than via a Graphics. Only rows that have
+     * changed since the last call are redrawn, so the same array should be
+     * passed every time (a different array is redrawn in full).
+     * @param pixels The pixels to draw on.
+     * @param scanlineStride The distance between rows of pixels, in bytes.
+     * @param pixelStride The distance between pixels in a row, in bytes.
+     * @param bandOffsets The offsets of the red, green and blue samples
+     * within a pixel, followed by the offset of the alpha sample, if there
+     * is one.
+     * @param w The amount of width of the pixels to use.
+     * @param h The amount of height of the pixels to use.
+     */
+    public void redraw(byte[] pixels, int scanlineStride, int pixelStride,
+                       int[] bandOffsets, int w, int h) {
+        this.scanlineStride = scanlineStride;
+        this.pixelStride = pixelStride;
+        this.bandOffsets = bandOffsets;
+        redraw(null, pixels, false, w, h);
+    }
+
     /**
      * Returns the current height of the area of this SwingTerminal used
      * to actually draw the terminal.
@@ -600,6 +692,53 @@ public class VDURenderer {
         return charWidth * buffer.width;
     }
 
+    /**
+     * Works out which part of the drawing area has changed since it was last
+     * redrawn, going by the differences between the current VDU buffer and
+     * the one before it (including the cursor moving), and whether the font
+     * or any other setting affecting the whole display has changed.
+     * @param drawWidth The amount of width that will be drawn on.
+     * @param drawHeight The amount of height that will be drawn on.
+     * @return The area that needs redrawing, or null if nothing has changed.
+     */
+    public Rectangle getChangedArea(int drawWidth, int drawHeight) {
+        if (update[0]) {
+            return new Rectangle(0, 0, drawWidth, drawHeight);
+        }
+        int first = -1;
+        int last = -1;
+        for (int l = 0; l < buffer.height && l + 1 < update.length; l++) {
+            if (update[l + 1]) {
+                if (first == -1) {
+                    first = l;
+                }
+                last = l;
+            }
+        }
+        if (first == -1) {
+            return null;
+        }
+        // Whole rows are repainted, as characters that aren't drawn from the
+        // atlas are laid out as text, and so can move when something to
+        // their left changes.
+        int width = charWidth * buffer.width;
+        int height = charHeight * buffer.height;
+        return new Rectangle((drawWidth - width) / 2,
+                             (drawHeight - height) / 2 + first * charHeight,
+                             width, (last - first + 1) * charHeight);
+    }
+
+    /**
+     * Returns which cells of the terminal were changed by the last redraw
+     * onto pixels. Cells not in the list (unless the list is complete) were
+     * left exactly as they were.
+     * @return The changes, which are only valid until the next redraw.
+     * @see #redraw(byte[], int, int, int[], int, int)
+     */
+    ScreenDiff getPixelChanges() {
+        return pixelChanges;
+    }
+
     /**
      * The internal rendering function that contains code common to asHTML() and
      * redraw().
@@ -615,9 +754,35 @@ public class VDURenderer {
      * @see #redraw(java.awt.Graphics, int, int)
      */
     protected String redraw(Graphics g, boolean renderHTML, int drawWidth, int drawHeight) {
-        if (g == null && !renderHTML) {
+        return redraw(g, null, renderHTML, drawWidth, drawHeight);
+    }
+
+    /**
+     * The internal rendering function that contains code common to asHTML()
+     * and both versions of redraw().
+     * @param g The Graphics to render on, or null.
+     * @param pixels The pixels to render on, or null; if not null, g is
+     * ignored, and the layout of the pixels is taken from scanlineStride,
+     * pixelStride and bandOffsets.
+     * @param renderHTML If true, will render to HTML rather than to a
+     * Graphics or pixels.
+     * @param drawWidth The amount of the Graphics' or pixels' width to draw
+     * on.
+     * @param drawHeight The amount of the Graphics' or pixels' height to draw
+     * on.
+     * @return If renderHTML is true, an HTML representation of the VDU buffer.
+     * Otherwise, an arbitrary string (which may or may not vaguely resemble
+     * HTML).
+     */
+    private String redraw(Graphics g, byte[] pixels, boolean renderHTML, int drawWidth, int drawHeight) {
+        if (renderHTML) {
+            pixels = null;
+        } else if (pixels != null) {
+            g = null;
+        } else if (g == null) {
             return "";
         }
+        boolean toGraphics = g != null && !renderHTML;
         StringBuilder html = new StringBuilder("<pre>");
         int width;
         int height;
@@ -636,90 +801,177 @@ public class VDURenderer {
         // of the SwingTerminal that aren't occupied by the terminal itself
         int xoffset = 0;
         int yoffset = 0;
+        // Characters are copied from the atlas where possible, as that's much
+        // faster than drawing them as text. That only works if the Graphics
+        // draws pixels one-to-one, though (not, e.g., when printing, or on a
+        // scaled screen), as otherwise the characters would come out blurry.
+        // (Pixels are always drawn one-to-one.)
+        boolean useAtlas = pixels != null;
+        if (toGraphics && g instanceof Graphics2D) {
+            useAtlas = (((Graphics2D) g).getTransform().getType()
+                    & ~AffineTransform.TYPE_TRANSLATION) == 0;
+        }
+        // When drawing on pixels, everything that affects what they look like
+        // is remembered, so that if none of it changes, only the cells of the
+        // terminal that have changed need redrawing; forgetting shownPixels
+        // forces everything to be redrawn.
+        if (useAtlas && atlas.configure(normalFont, boldFont, charWidth,
+                charHeight, charDescent, textAntialiasingType)) {
+            shownPixels = null;
+        }
+        if (colorTablesFor != color) {
+            updateColorTables();
+            shownPixels = null;
+        }
+        boolean redrawAll = true;
         if (!renderHTML) {
-            g.setColor(UIManager.getColor("Panel.background"));
-            g.fillRect(0, 0, drawWidth, drawHeight);
             xoffset = (drawWidth - width) / 2;
             yoffset = (drawHeight - height) / 2;
+        }
+        Rectangle clip = null;
+        if (toGraphics) {
+            // Only the margins around the terminal need clearing, as every
+            // cell of the terminal has its background drawn anyway.
+            g.setColor(UIManager.getColor("Panel.background"));
+            g.fillRect(0, 0, drawWidth, yoffset);
+            g.fillRect(0, yoffset + height, drawWidth, drawHeight - yoffset - height);
+            g.fillRect(0, yoffset, xoffset, height);
+            g.fillRect(xoffset + width, yoffset, drawWidth - xoffset - width, height);
             g.setFont(normalFont);
+            // Rows outside the area being repainted needn't be drawn.
+            clip = g.getClipBounds();
+        } else if (pixels != null) {
+            if (pixels != shownPixels || drawWidth != shownDrawWidth
+                    || drawHeight != shownDrawHeight
+                    || allowBold != shownAllowBold) {
+                pixelChanges.reset();
+                shownPixels = pixels;
+                shownDrawWidth = drawWidth;
+                shownDrawHeight = drawHeight;
+                shownAllowBold = allowBold;
+            }
+            pixelChanges.update(buffer);
+            redrawAll = pixelChanges.isComplete();
+            if (redrawAll) {
+                fillPixels(pixels, 0, 0, drawWidth, drawHeight, drawWidth,
+                           drawHeight, UIManager.getColor("Panel.background").getRGB());
+            }
         }
-        Color fg = color[COLOR_FG_STD];
-        Color bg = color[COLOR_BG_STD];
+        // where the terminal ends, for clipping pixels
+        int clipWidth = Math.min(drawWidth, xoffset + width);
+        int clipHeight = Math.min(drawHeight, yoffset + height);
+        int fg;
+        int bg;
+        int change = 0;
+        boolean drewEveryRow = !renderHTML;
         for (int l = 0; l < buffer.height; l++) {
-            if (!update[0] && !update[l + 1] && !renderHTML) {
+            // Every row in the area being repainted is drawn, whether it's
+            // changed or not, as Swing repaints areas of its own accord (e.g.
+            // when a menu that was over them closes).
+            if (clip != null && (l * charHeight + yoffset >= clip.y + clip.height
+                    || (l + 1) * charHeight + yoffset <= clip.y)) {
+                drewEveryRow = false;
                 continue;
             }
             if (!renderHTML) {
                 update[l + 1] = false;
+            }
+            // the columns to draw, and where drawing the row stops
+            int firstColumn = 0;
+            int endColumn = buffer.width;
+            if (pixels != null && !redrawAll) {
+                if (change == pixelChanges.getChangeCount()
+                        || pixelChanges.getChangedRow(change) != l) {
+                    continue;
+                }
+                firstColumn = pixelChanges.getFirstColumn(change);
+                endColumn = pixelChanges.getEndColumn(change);
+                change++;
+            }
+            int rowClipWidth = Math.min(clipWidth, endColumn * charWidth + xoffset);
+            if (!renderHTML) {
                 if (debug > 2) {
                     System.err.println("redraw(): line " + l);
                 }
             }
-            for (int c = 0; c < buffer.width; c++) {
+            /* Work on a copy of the row, as the buffer's rows may be packed
+             * or shared with other buffers. */
+            if (rowChars.length < buffer.width) {
+                rowChars = new char[buffer.width];
+                rowAttributes = new long[buffer.width];
+            }
+            buffer.copyRow(buffer.windowBase + l, rowChars, rowAttributes,
+                           buffer.width);
+            if (firstColumn > 0) {
+                // How a control character is drawn depends on the cells
+                // before it, so start from a cell that's drawn the same way
+                // whatever comes before it: a printable character, or one
+                // that starts a new run because of the cursor.
+                int cursor = buffer.screenBase + buffer.cursorY == buffer.windowBase + l
+                        ? buffer.cursorX : -2;
+                while (firstColumn > 0 && rowChars[firstColumn] < ' '
+                        && firstColumn != cursor && firstColumn != cursor + 1) {
+                    firstColumn--;
+                }
+            }
+            for (int c = firstColumn; c < endColumn; c++) {
                 int addr = 0;
-                long currAttr = buffer.charAttributes[buffer.windowBase + l][c];
-                fg = darken(color[COLOR_FG_STD]);
-                bg = darken(color[COLOR_BG_STD]);
+                long currAttr = rowAttributes[c];
+                fg = defaultFg;
+                bg = defaultBg;
+                int fgColor = (int)((currAttr & VDUBuffer.COLOR_FG) >> VDUBuffer.COLOR_FG_SHIFT) - 1;
                 if ((currAttr & VDUBuffer.COLOR_FG) != 0) {
-                    int fgColor = (int)((currAttr & VDUBuffer.COLOR_FG) >> VDUBuffer.COLOR_FG_SHIFT) - 1;
-                    if (fgColor < 8) {
-                        fg = color[fgColor];
-                    } else if (fgColor < 256) {
-                        fg = xterm_256_colors[fgColor];
+                    if (fgColor < 256) {
+                        fg = fgTable[fgColor];
                     } else {
-                        fg = new Color(0xff000000 | (fgColor - 256));
+                        fg = 0xff000000 | (fgColor - 256);
                     }
                 }
                 if ((currAttr & VDUBuffer.COLOR_BG) != 0) {
                     int bgColor = (int)((currAttr & VDUBuffer.COLOR_BG) >> VDUBuffer.COLOR_BG_SHIFT) - 1;
-                    if (bgColor < 8) {
-                        bg = darken(color[bgColor]);
-                    } else if (bgColor < 256) {
-                        bg = xterm_256_colors[bgColor];
+                    if (bgColor < 256) {
+                        bg = bgTable[bgColor];
                     } else {
-                        bg = new Color(0xff000000 | (bgColor - 256));
+                        bg = 0xff000000 | (bgColor - 256);
                     }
                 }
                 if ((currAttr & VDUBuffer.BOLD) != 0) {
                     // g.setFont(new Font(normalFont.getName(), Font.BOLD, normalFont.getSize()));
-                    if (!renderHTML && allowBold) g.setFont(normalFont.deriveFont(Font.BOLD));
-                    else if (!renderHTML) g.setFont(normalFont);
-                    if (null != color[COLOR_BOLD]) {
-                        fg = color[COLOR_BOLD];
-                    } else {
-                        int fgColor = (int)((currAttr & VDUBuffer.COLOR_FG) >> VDUBuffer.COLOR_FG_SHIFT) - 1;
-                        if (fgColor < 8 && (currAttr & VDUBuffer.BOLD) != 0) {
-                            fg = color[fgColor + COLOR_FIRST_BOLD_REPLACEMENT];
-                        }
+                    if (toGraphics && allowBold) g.setFont(boldFont);
+                    else if (toGraphics) g.setFont(normalFont);
+                    if (0 != boldColor) {
+                        fg = boldColor;
+                    } else if (fgColor < 8 && 0 != boldTable[fgColor + 1]) {
+                        fg = boldTable[fgColor + 1];
                     }
-                } else if (!renderHTML) {
+                } else if (toGraphics) {
                     g.setFont(normalFont);
                 }
                 if ((currAttr & VDUBuffer.LOW) != 0) {
                     fg = darken(fg);
                 }
                 if ((currAttr & VDUBuffer.INVERT) != 0) {
-                    if (null == color[COLOR_INVERT]) {
-                        Color swapc = bg;
+                    if (0 == invertColor) {
+                        int swapc = bg;
                         bg = fg;
                         fg = swapc;
                     } else {
-                        if (null == color[COLOR_BOLD]) {
+                        if (0 == boldColor) {
                             fg = bg;
                         } else {
-                            fg = color[COLOR_BOLD];
+                            fg = boldColor;
                         }
-                        bg = color[COLOR_INVERT];
+                        bg = invertColor;
                     }
                 }
                 // determine the maximum of characters we can print in one go
-                while ((c + addr < buffer.width) && ((buffer.charArray[buffer.windowBase + l][c + addr] < ' ') || (buffer.charAttributes[buffer.windowBase + l][c + addr] == currAttr))) {
+                while ((c + addr < endColumn) && ((rowChars[c + addr] < ' ') || (rowAttributes[c + addr] == currAttr))) {
                     if (buffer.screenBase + buffer.cursorY == buffer.windowBase + l && buffer.cursorX == c + addr) {
                         break;
                     }
-                    if (buffer.charArray[buffer.windowBase + l][c + addr] < ' ') {
-                        buffer.charArray[buffer.windowBase + l][c + addr] = ' ';
-                        buffer.charAttributes[buffer.windowBase + l][c + addr] = 0;
+                    if (rowChars[c + addr] < ' ') {
+                        rowChars[c + addr] = ' ';
+                        rowAttributes[c + addr] = 0;
                         continue;
                     }
                     addr++;
@@ -731,15 +983,18 @@ public class VDURenderer {
                     // Draw the cursor. This is done by swapping foreground and
                     // background, then brightening the foreground twice and
                     // darkening the background twice.
-                    Color swapc = fg;
+                    int swapc = fg;
                     fg = brighten(brighten(bg));
                     bg = darken(darken(swapc));
                 }
                 // clear the part of the screen we want to change (fill rectangle)
-                if (!renderHTML) {
-                    g.setColor(bg);
+                if (toGraphics) {
+                    g.setColor(toColor(bg));
                     g.fillRect(c * charWidth + xoffset, l * charHeight + yoffset, addr * charWidth, charHeight);
-                    g.setColor(fg);
+                    g.setColor(toColor(fg));
+                } else if (pixels != null) {
+                    fillPixels(pixels, c * charWidth + xoffset, l * charHeight + yoffset,
+                               addr * charWidth, charHeight, rowClipWidth, clipHeight, bg);
                 } else {
                     html.append("<span style='background-color:#")
                             .append(colorHex(bg))
@@ -749,12 +1004,50 @@ public class VDURenderer {
                 }
                 // draw the characters, if not invisible.
                 if ((currAttr & VDUBuffer.INVISIBLE) == 0) {
-                    if (!renderHTML) {
-                        g.drawChars(buffer.charArray[buffer.windowBase + l], c, addr,
-                                    c * charWidth + xoffset, (l + 1) * charHeight - charDescent + yoffset);
+                    if (pixels != null) {
+                        boolean bold = allowBold && (currAttr & VDUBuffer.BOLD) != 0;
+                        for (int i = 0; i < addr; i++) {
+                            if (rowChars[c + i] == ' ') {
+                                continue;
+                            }
+                            BufferedImage glyph = atlas.getGlyph(rowChars[c + i], bold, fg, bg);
+                            if (glyph == null) {
+                                // doesn't fit in the cell, so cut it off
+                                glyph = atlas.renderGlyph(rowChars[c + i], bold, fg, bg);
+                            }
+                            copyPixels(pixels, glyph, (c + i) * charWidth + xoffset,
+                                       l * charHeight + yoffset, rowClipWidth, clipHeight);
+                        }
+                    } else if (!renderHTML) {
+                        int i = 0;
+                        if (useAtlas) {
+                            boolean bold = allowBold && (currAttr & VDUBuffer.BOLD) != 0;
+                            for (; i < addr; i++) {
+                                // the background's already been filled in
+                                if (rowChars[c + i] == ' ') {
+                                    continue;
+                                }
+                                BufferedImage glyph = atlas.getGlyph(rowChars[c + i], bold, fg, bg);
+                                if (glyph == null) {
+                                    break;
+                                }
+                                g.drawImage(glyph, (c + i) * charWidth + xoffset, l * charHeight + yoffset, null);
+                            }
+                        }
+                        // draw anything that isn't in the atlas as text
+                        if (i < addr) {
+                            // Characters from other fonts can stick out of
+                            // the row, and wouldn't be cleared up if only the
+                            // rows that changed are repainted later.
+                            Shape rowClip = g.getClip();
+                            g.clipRect(xoffset, l * charHeight + yoffset, width, charHeight);
+                            g.drawChars(rowChars, c + i, addr - i,
+                                        (c + i) * charWidth + xoffset, (l + 1) * charHeight - charDescent + yoffset);
+                            g.setClip(rowClip);
+                        }
                     } else {
                         for (int i = 0; i < addr; i++) {
-                            int cp = Character.codePointAt(buffer.charArray[buffer.windowBase + l], c + i);
+                            int cp = Character.codePointAt(rowChars, c + i);
                             if (cp == 0) {
                                 html.append(' ');
                             } else if (cp >= 32 && cp <= 126 && cp != '&' && cp != '"') {
@@ -772,7 +1065,10 @@ public class VDURenderer {
                 if (renderHTML) {
                     html.append("</span>");
                 }
-                if ((currAttr & VDUBuffer.UNDERLINE) != 0) {
+                if ((currAttr & VDUBuffer.UNDERLINE) != 0 && pixels != null) {
+                    fillPixels(pixels, c * charWidth + xoffset, (l + 1) * charHeight - charDescent / 2 + yoffset,
+                               addr * charWidth + 1, 1, rowClipWidth, clipHeight, fg);
+                } else if ((currAttr & VDUBuffer.UNDERLINE) != 0 && toGraphics) {
                     g.drawLine(c * charWidth + xoffset, (l + 1) * charHeight - charDescent / 2 + yoffset, c * charWidth + addr * charWidth + xoffset, (l + 1) * charHeight - charDescent / 2 + yoffset);
                 }
                 c += addr - 1;
@@ -781,11 +1077,82 @@ public class VDURenderer {
                 html.append('\n');
             }
         }
-        update[0] = false;
+        if (drewEveryRow) {
+            update[0] = false;
+        }
         html.append("</pre>");
         return html.toString();
     }
 
+    /**
+     * Fills a rectangle of pixels with a color.
+     * @param pixels The pixels to draw on, laid out as described by
+     * scanlineStride, pixelStride and bandOffsets.
+     * @param x The left edge of the rectangle.
+     * @param y The top edge of the rectangle.
+     * @param w The width of the rectangle.
+     * @param h The height of the rectangle.
+     * @param clipWidth Nothing is drawn at or to the right of this x.
+     * @param clipHeight Nothing is drawn at or below this y.
+     * @param rgb The color to fill with, as an RGB value.
+     */
+    private void fillPixels(byte[] pixels, int x, int y, int w, int h,
+                            int clipWidth, int clipHeight, int rgb) {
+        int x1 = Math.min(x + w, clipWidth);
+        int y1 = Math.min(y + h, clipHeight);
+        x = Math.max(x, 0);
+        y = Math.max(y, 0);
+        byte r = (byte) (rgb >> 16);
+        byte gr = (byte) (rgb >> 8);
+        byte b = (byte) rgb;
+        boolean alpha = bandOffsets.length > 3;
+        for (int j = y; j < y1; j++) {
+            int p = j * scanlineStride + x * pixelStride;
+            for (int i = x; i < x1; i++, p += pixelStride) {
+                pixels[p + bandOffsets[0]] = r;
+                pixels[p + bandOffsets[1]] = gr;
+                pixels[p + bandOffsets[2]] = b;
+                if (alpha) {
+                    pixels[p + bandOffsets[3]] = (byte) 0xff;
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies an image (one of the atlas's) onto pixels.
+     * @param pixels The pixels to draw on, laid out as described by
+     * scanlineStride, pixelStride and bandOffsets.
+     * @param image The image to copy; it must be of type TYPE_INT_RGB.
+     * @param x Where the left edge of the image goes.
+     * @param y Where the top edge of the image goes.
+     * @param clipWidth Nothing is drawn at or to the right of this x.
+     * @param clipHeight Nothing is drawn at or below this y.
+     */
+    private void copyPixels(byte[] pixels, BufferedImage image, int x, int y,
+                            int clipWidth, int clipHeight) {
+        int[] src = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        int w = image.getWidth();
+        int x0 = Math.max(x, 0);
+        int y0 = Math.max(y, 0);
+        int x1 = Math.min(x + w, clipWidth);
+        int y1 = Math.min(y + image.getHeight(), clipHeight);
+        boolean alpha = bandOffsets.length > 3;
+        for (int j = y0; j < y1; j++) {
+            int p = j * scanlineStride + x0 * pixelStride;
+            int s = (j - y) * w + (x0 - x);
+            for (int i = x0; i < x1; i++, p += pixelStride) {
+                int rgb = src[s++];
+                pixels[p + bandOffsets[0]] = (byte) (rgb >> 16);
+                pixels[p + bandOffsets[1]] = (byte) (rgb >> 8);
+                pixels[p + bandOffsets[2]] = (byte) rgb;
+                if (alpha) {
+                    pixels[p + bandOffsets[3]] = (byte) 0xff;
+                }
+            }
+        }
+    }
+
     /**
      * Set default for printing black&amp;white or colorized as displayed on
      * screen.
@@ -843,6 +1210,11 @@ public class VDURenderer {
             System.err.println("VDU: looking for better match for " + normalFont);
         }
         Font tmpFont = normalFont;
+        int oldCharWidth = charWidth;
+        int oldCharHeight = charHeight;
+        int oldCharDescent = charDescent;
+        int oldColumns = buffer.width;
+        int oldRows = buffer.height;
         String fontName = tmpFont.getName();
         int fontStyle = tmpFont.getStyle();
         fm = g.getFontMetrics(tmpFont);
@@ -874,6 +1246,11 @@ public class VDURenderer {
                     //System.err.println("VDU: disabling font/screen resize");
                     //resizeStrategy = RESIZE_NONE;
                 }
+                // charHeight was used as a font size above; put the metrics
+                // back, so that setFont can tell whether they changed.
+                charWidth = oldCharWidth;
+                charHeight = oldCharHeight;
+                charDescent = oldCharDescent;
                 setFont(normalFont,g);
                 fm = g.getFontMetrics(normalFont);
                 charWidth = fm.charWidth('@');
@@ -887,7 +1264,13 @@ public class VDURenderer {
         if (debug > 0) {
             System.err.println("VDU: charWidth=" + charWidth + ", " + "charHeight=" + charHeight + ", " + "charDescent=" + charDescent);
         }
-        update[0] = true;
+        // Resizing is done every time the buffer changes, so only redraw
+        // everything if it actually changed something.
+        if (!normalFont.equals(tmpFont) || charWidth != oldCharWidth
+                || charHeight != oldCharHeight || charDescent != oldCharDescent
+                || buffer.width != oldColumns || buffer.height != oldRows) {
+            update[0] = true;
+        }
     }
 
     /**
@@ -919,8 +1302,8 @@ public class VDURenderer {
         }
     }
 
-    private String colorHex(Color fg) {
-        return hex2(fg.getRed()) + hex2(fg.getGreen()) + hex2(fg.getBlue());
+    private String colorHex(int rgb) {
+        return hex2((rgb >> 16) & 0xff) + hex2((rgb >> 8) & 0xff) + hex2(rgb & 0xff);
     }
 
     /**
@@ -946,6 +1329,9 @@ public class VDURenderer {
      * bold (in addition to color); false if it should use color only.
      */
     public void setAllowBold(boolean bold) {
+        if (allowBold != bold) {
+            update[0] = true;
+        }
         allowBold = bold;
     }
 }
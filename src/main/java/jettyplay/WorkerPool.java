@@ -0,0 +1,291 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package jettyplay;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs TtyrecWorkers, on threads shared between all TtyrecSources. Only a
+ * limited number of workers are allowed to run at once (one per processor),
+ * so that opening many ttyrecs at once doesn't mean that dozens of workers
+ * all compete for the processor; the others wait for a slot.
+ * <p>
+ * When there are more workers than slots, processor time is shared out
+ * between them in proportion to their shares (see TtyrecSource.getShare),
+ * which depend on what the user is waiting for. Each worker has a virtual
+ * running time, which goes up as it runs, more slowly the larger its share;
+ * slots go to the waiting worker with the least virtual time, and a running
+ * worker hands over its slot once it's got more than SLICE ahead of a
+ * waiting worker. A worker that's been waiting for something (and so not
+ * using its share) is only given up to SLICE of credit for that, so it
+ * can't then shut other workers out. When there are no more workers than
+ * slots, this has no effect, and every worker runs flat out.
+ * <p>
+ * Workers often have to wait for each other (e.g. a decoder waiting for the
+ * analyzer to find more frames), so a worker gives up its slot while it's
+ * waiting for something, via beginWait() and endWait(); otherwise, workers
+ * could deadlock by holding every slot while waiting for a worker that
+ * doesn't have one. A worker checks whether it should hand over its slot
+ * each time round its main loop (see yieldSlot()). A worker that splits
+ * its work between several threads of its own gives up its slot while it
+ * waits for them, and each of those threads gets a slot of its own via
+ * beginHelping() and endHelping(), so the work still fits within the slots.
+ * Threads are only created when a worker starts running without one being
+ * free, and are reused once their worker has finished.
+ * @author ais523
+ * @see TtyrecWorker
+ */
+public final class WorkerPool {
+
+    /* A worker that wants a slot, in the order in which slots are given
+     * out. */
+    private static class Request implements Comparable<Request> {
+        final TtyrecWorker worker;
+        final long vruntime;
+        final long ticket;
+        Request(TtyrecWorker worker, long vruntime, long ticket) {
+            this.worker = worker;
+            this.vruntime = vruntime;
+            this.ticket = ticket;
+        }
+        @Override
+        public int compareTo(Request other) {
+            if (vruntime != other.vruntime)
+                return Long.compare(vruntime, other.vruntime);
+            return Long.compare(ticket, other.ticket);
+        }
+    }
+
+    /* What the worker running on a thread is doing with its slot. */
+    private static class Turn {
+        final TtyrecWorker worker;
+        int waits = 0; // how deeply nested beginWait() calls are
+        long vruntime = 0;
+        long since; // when vruntime was last brought up to date
+        final Turn outer; // the thread's turn before beginHelping(), if any
+        Turn(TtyrecWorker worker, Turn outer) {
+            this.worker = worker;
+            this.outer = outer;
+        }
+    }
+
+    /**
+     * The share of a worker that the user is waiting for.
+     */
+    public static final int SHARE_URGENT = 16;
+    /**
+     * The share of most workers.
+     */
+    public static final int SHARE_NORMAL = 4;
+    /**
+     * The share of a worker whose results are likely to be replaced soon.
+     */
+    public static final int SHARE_LOW = 1;
+
+    /* How far, in nanoseconds of virtual time, a running worker can get
+     * ahead of a waiting one before it hands over its slot. */
+    private static final long SLICE = 4000000;
+    private static final int SLOTS =
+            Runtime.getRuntime().availableProcessors();
+    private static final ExecutorService threads = new ThreadPoolExecutor(
+            0, Integer.MAX_VALUE, 30, TimeUnit.SECONDS,
+            new SynchronousQueue<Runnable>(), new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "Ttyrec Worker");
+            // Workers are always cancelled by their TtyrecSource, so there's
+            // no reason for an idle thread to keep the program running.
+            t.setDaemon(true);
+            return t;
+        }
+    });
+    private static final ThreadLocal<Turn> turns = new ThreadLocal<>();
+    private static final PriorityQueue<Request> queue = new PriorityQueue<>();
+    private static int freeSlots = SLOTS;
+    private static long nextTicket = 0;
+    // The virtual time of the worker that last got a slot.
+    private static long clock = 0;
+    // So that yieldSlot() doesn't need to lock when nothing's waiting.
+    private static volatile int queueLength = 0;
+
+    private WorkerPool() {}
+
+    /**
+     * Starts running a worker's run() method on one of the pool's threads,
+     * once there's a slot for it.
+     * @param worker The worker to run.
+     */
+    static void execute(final TtyrecWorker worker) {
+        threads.execute(new Runnable() {
+            @Override
+            public void run() {
+                Thread thread = Thread.currentThread();
+                thread.setName(worker.getName());
+                thread.setPriority(worker.getPriority());
+                Turn turn = new Turn(worker, null);
+                turns.set(turn);
+                worker.attachThread(thread);
+                try {
+                    acquire(turn);
+                    try {
+                        worker.run();
+                    } finally {
+                        release(turn);
+                    }
+                } finally {
+                    worker.attachThread(null);
+                    turns.remove();
+                    // Don't leave an interrupt for the next worker.
+                    Thread.interrupted();
+                    thread.setPriority(Thread.NORM_PRIORITY);
+                    thread.setName("Ttyrec Worker");
+                    worker.finished();
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the worker that's running on the current thread.
+     * @return The worker, or null if the current thread isn't running one.
+     */
+    static TtyrecWorker currentWorker() {
+        Turn t = turns.get();
+        return t == null ? null : t.worker;
+    }
+
+    /**
+     * Returns the number of slots, i.e. how many workers can run at once.
+     * Anything that runs a worker's work on threads of its own should use
+     * no more threads than this.
+     * @return The number of slots.
+     */
+    static int getSlotCount() {
+        return SLOTS;
+    }
+
+    /**
+     * Waits for a slot in which to do some of a worker's work on the current
+     * thread. This is for workers that split their work across several
+     * threads; the time spent counts towards the worker's share. The thread
+     * can be one that's running a worker, as long as that worker has given
+     * up its slot with beginWait() (as a thread pool may run a task on the
+     * thread waiting for it). Every call must be matched by a call to
+     * endHelping(), on the same thread.
+     * @param worker The worker whose work is to be done.
+     */
+    static void beginHelping(TtyrecWorker worker) {
+        Turn t = new Turn(worker, turns.get());
+        turns.set(t);
+        acquire(t);
+    }
+
+    /**
+     * Gives up the slot that the current thread got from beginHelping().
+     * @see #beginHelping(TtyrecWorker)
+     */
+    static void endHelping() {
+        Turn t = turns.get();
+        if (t.outer != null) turns.set(t.outer);
+        else turns.remove();
+        release(t);
+    }
+
+    /**
+     * Gives up the current worker's slot while it waits for something. This
+     * does nothing if the current thread isn't running a worker. Every call
+     * must be matched by a call to endWait(), which should not be made while
+     * holding any locks that other threads might need, as it can block.
+     */
+    static void beginWait() {
+        Turn t = turns.get();
+        if (t == null) return;
+        if (t.waits++ == 0) release(t);
+    }
+
+    /**
+     * Gets the current worker a slot again, after it's finished waiting.
+     * @see #beginWait()
+     */
+    static void endWait() {
+        Turn t = turns.get();
+        if (t == null) return;
+        if (--t.waits == 0) acquire(t);
+    }
+
+    /**
+     * Lets another worker run instead of the current worker, if one that's
+     * waiting for a slot is owed some processor time. This should be called
+     * at a convenient moment, such as once per iteration of a worker's main
+     * loop.
+     */
+    static void yieldSlot() {
+        Turn t = turns.get();
+        if (t == null || t.waits > 0) return;
+        charge(t);
+        if (queueLength == 0) return;
+        synchronized (WorkerPool.class) {
+            Request head = queue.peek();
+            if (head == null || head.vruntime + SLICE > t.vruntime) return;
+            freeSlot();
+        }
+        acquire(t);
+    }
+
+    /* Adds the time that a worker's been running since it was last charged
+     * to its virtual time, scaled by its share. */
+    private static void charge(Turn t) {
+        long now = System.nanoTime();
+        t.vruntime += (now - t.since) * SHARE_URGENT / t.worker.getShare();
+        t.since = now;
+    }
+
+    /* Waits for a slot. A halted worker gets one straight away, even if
+     * there isn't one free, so that it can finish promptly. */
+    private static synchronized void acquire(Turn t) {
+        TtyrecWorker worker = t.worker;
+        t.vruntime = Math.max(t.vruntime, clock - SLICE);
+        Request r = new Request(worker, t.vruntime, nextTicket++);
+        queue.add(r);
+        queueLength = queue.size();
+        boolean interrupted = false;
+        while ((freeSlots <= 0 || queue.peek() != r) && !worker.isHalted) {
+            try {
+                WorkerPool.class.wait();
+            } catch (InterruptedException ex) {
+                // Workers are interrupted when they're halted, which is
+                // checked above; any other interrupt is for the worker.
+                interrupted = true;
+            }
+        }
+        queue.remove(r);
+        queueLength = queue.size();
+        freeSlots--;
+        clock = Math.max(clock, t.vruntime);
+        t.since = System.nanoTime();
+        // The next worker in the queue may be able to go, too.
+        WorkerPool.class.notifyAll();
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    /* Gives up a slot, charging the worker for its time in it. The charging
+     * is done without the lock held, as working out the worker's share means
+     * asking its TtyrecSource, which has locks of its own. */
+    private static void release(Turn t) {
+        charge(t);
+        freeSlot();
+    }
+
+    private static synchronized void freeSlot() {
+        freeSlots++;
+        WorkerPool.class.notifyAll();
+    }
+}
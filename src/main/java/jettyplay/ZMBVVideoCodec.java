@@ -156,7 +156,30 @@ public class ZMBVVideoCodec extends AbstractVideoCodec {
             len += 2; /* 2 bytes of padding if there are an odd number of blocks */
         byte[] motionVectors = new byte[len];
         int motionPos = 0;
+        /* If the blocks are the terminal's character cells, then only the
+         * blocks of cells that the renderer redrew can have changed, and
+         * there's no need to look at the others. */
+        VDURenderer renderer = getRenderer();
+        ScreenDiff changes = renderer.getPixelChanges();
+        boolean blocksAreCells = !changes.isComplete()
+                && blockWidth == renderer.getCharWidth()
+                && blockHeight == renderer.getCharHeight()
+                && w == renderer.getCurrentTerminalWidth()
+                && h == renderer.getCurrentTerminalHeight();
+        int change = 0;
         for (int y = 0; y < h / blockHeight; y++) {
+            int firstChangedX = 0;
+            int endChangedX = w / blockWidth;
+            if (blocksAreCells) {
+                if (change < changes.getChangeCount()
+                        && changes.getChangedRow(change) == y) {
+                    firstChangedX = changes.getFirstColumn(change);
+                    endChangedX = changes.getEndColumn(change);
+                    change++;
+                } else {
+                    endChangedX = 0;
+                }
+            }
             for (int x = 0; x < w / blockWidth; x++) {
                 // TODO: better estimation
                 byte motionX = 0;
@@ -165,32 +188,34 @@ public class ZMBVVideoCodec extends AbstractVideoCodec {
                 // The ZMBV format allows specifying motion relative to
                 // outside the frame. This algorithm doesn't, though.
                 boolean hasResidual = false;
-                for (int j = y * blockHeight * w * 4;
-                        j < (y + 1) * blockHeight * w * 4; j += w * 4) {
-                    for (int k = x * 4 * blockWidth + j;
-                            k < (x + 1) * (blockWidth * 4) + j; k += 4) {
-                        if ((residual[residualPos++] =
-                                (byte) (uncompressedData[k]
-                                ^ prevUncompressedData[k + motion])) != 0) {
-                            hasResidual = true;
-                        }
-                        if ((residual[residualPos++] =
-                                (byte) (uncompressedData[k + 1]
-                                ^ prevUncompressedData[k + 1 + motion])) != 0) {
-                            hasResidual = true;
+                if (x >= firstChangedX && x < endChangedX) {
+                    for (int j = y * blockHeight * w * 4;
+                            j < (y + 1) * blockHeight * w * 4; j += w * 4) {
+                        for (int k = x * 4 * blockWidth + j;
+                                k < (x + 1) * (blockWidth * 4) + j; k += 4) {
+                            if ((residual[residualPos++] =
+                                    (byte) (uncompressedData[k]
+                                    ^ prevUncompressedData[k + motion])) != 0) {
+                                hasResidual = true;
+                            }
+                            if ((residual[residualPos++] =
+                                    (byte) (uncompressedData[k + 1]
+                                    ^ prevUncompressedData[k + 1 + motion])) != 0) {
+                                hasResidual = true;
+                            }
+                            if ((residual[residualPos++] =
+                                    (byte) (uncompressedData[k + 2]
+                                    ^ prevUncompressedData[k + 2 + motion])) != 0) {
+                                hasResidual = true;
+                            }
+                            residual[residualPos++] = 0;
                         }
-                        if ((residual[residualPos++] =
-                                (byte) (uncompressedData[k + 2]
-                                ^ prevUncompressedData[k + 2 + motion])) != 0) {
-                            hasResidual = true;
-                        }
-                        residual[residualPos++] = 0;
                     }
-                }
-                if (!hasResidual) {
-                    residualPos -= blockWidth * blockHeight * 4;
-                } else {
-                    residualCount++;
+                    if (!hasResidual) {
+                        residualPos -= blockWidth * blockHeight * 4;
+                    } else {
+                        residualCount++;
+                    }
                 }
                 motionVectors[motionPos++] = (byte) ((motionX << 1)
                                 | (hasResidual ? 1 : 0));
@@ -71,6 +71,23 @@ public class vt320 extends VDUBuffer implements Cloneable {
     };
     private EncodingOverride characterEncodingOverride;
 
+  /**
+   * Creates a copy of this terminal, in the same state. The copy can be
+   * written to without affecting this terminal.
+   * @return The copy.
+   * @throws CloneNotSupportedException Never.
+   */
+  @Override
+  public Object clone() throws CloneNotSupportedException {
+    vt320 t = (vt320) super.clone();
+    // These are modified in place, so they can't be shared.
+    t.gx = gx.clone();
+    t.Tabs = Tabs.clone();
+    t.DCEvars = DCEvars.clone();
+    t.debugStr = new StringBuilder();
+    return t;
+  }
+
   /**
    * Play the beep sound ...
    */
@@ -87,15 +104,52 @@ public class vt320 extends VDUBuffer implements Cloneable {
     // System.err.println("'"+s+"'");
 
     if (len > 0) {
-      for (int i = 0; i < len; i++) {
-        // System.err.print(s.charAt(i)+"("+(int)s.charAt(i)+")");
-        putChar(s.charAt(i), false);
+      int i = 0;
+      while (i < len) {
+        // Runs of plain text are written in one go; anything else goes
+        // through putChar one character at a time.
+        int run = printableRunLength(s, i);
+        if (run > 0) {
+          putChars(C, R, s, i, run, attributes);
+          C += run;
+          lastwaslf = 0;
+          i += run;
+        } else {
+          // System.err.print(s.charAt(i)+"("+(int)s.charAt(i)+")");
+          putChar(s.charAt(i), false);
+          i++;
+        }
       }
       setCursorPosition(C, R);
       redraw();
     }
   }
 
+  /* Returns how many characters, starting at position i of s, putChar would
+   * simply write to the screen one after another in the current state: that
+   * is, printable characters that need no charset mapping, up to the end of
+   * the current row. */
+  private int printableRunLength(String s, int i) {
+    if (term_state != TSTATE_DATA || useibmcharset || insertmode != 0 ||
+        onegl >= 0)
+      return 0;
+    if (C < 0 || C >= getColumns() || R < 0 || R >= getRows())
+      return 0;
+    boolean asciiMapped = usedcharsets &&
+      gx[gl] != 'A' && gx[gl] != 'B';
+    int end = Math.min(s.length(), i + getColumns() - C);
+    int j = i;
+    while (j < end) {
+      char c = s.charAt(j);
+      if (c < ' ' || (c >= '\u007f' && c <= '\u009f'))
+        break; /* control characters */
+      if (c <= '\u007e' ? asciiMapped : usedcharsets && c <= '\u00ff')
+        break; /* may be remapped by the G0-G3 charsets */
+      j++;
+    }
+    return j - i;
+  }
+
   /**
    * Sent the changed window size from the terminal to all listeners.
    * @param c The number of columns.
@@ -0,0 +1,166 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package jettyplay;
+
+import java.util.Arrays;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Tests for RowPool and PackedRow.
+ * @author ais523
+ */
+public class RowPoolTest {
+    // A foreground colour outside the 16 standard palette colours.
+    private static final long OTHER_COLOUR =
+            100L << VDUBuffer.COLOR_FG_SHIFT;
+
+    private static char[] chars(String s) {
+        return s.toCharArray();
+    }
+
+    private static long[] attributes(int length, long attribute) {
+        long[] a = new long[length];
+        Arrays.fill(a, attribute);
+        return a;
+    }
+
+    private static RowPool.Row intern(RowPool pool, String s) {
+        return pool.intern(chars(s), attributes(s.length(), 0));
+    }
+
+    @Test
+    public void equalRowsAreShared() {
+        RowPool pool = new RowPool(16);
+        RowPool.Row a = intern(pool, "hello");
+        assertSame(a, intern(pool, "hello"));
+        assertNotSame(a, intern(pool, "world"));
+        assertEquals(2, pool.size());
+    }
+
+    @Test
+    public void rowsDifferingOnlyInAttributesAreNotShared() {
+        RowPool pool = new RowPool(16);
+        RowPool.Row plain = intern(pool, "abc");
+        RowPool.Row bold = pool.intern(chars("abc"),
+                attributes(3, VDUBuffer.BOLD));
+        assertNotSame(plain, bold);
+        RowPool.Row wide = pool.intern(chars("abc"),
+                attributes(3, OTHER_COLOUR));
+        assertNotSame(plain, wide);
+        assertSame(wide, pool.intern(chars("abc"),
+                attributes(3, OTHER_COLOUR)));
+    }
+
+    @Test
+    public void hashCollisionsDontMergeRows() {
+        RowPool pool = new RowPool(16);
+        int[] p1 = PackedRow.pack(chars("one"), attributes(3, 0));
+        int[] p2 = PackedRow.pack(chars("two"), attributes(3, 0));
+        RowPool.Row r1 = pool.intern(null, null, p1, 42);
+        RowPool.Row r2 = pool.intern(null, null, p2, 42);
+        assertNotSame(r1, r2);
+        assertArrayEquals(p2, r2.packed);
+        assertSame(r1, pool.intern(null, null, p1.clone(), 42));
+        assertSame(r2, pool.intern(null, null, p2.clone(), 42));
+        // A wide row with the same hash as a packed one is different too.
+        char[] c = chars("one");
+        long[] a = attributes(3, OTHER_COLOUR);
+        RowPool.Row r3 = pool.intern(c, a, null, 42);
+        assertNotSame(r1, r3);
+        assertSame(r3, pool.intern(c.clone(), a.clone(), null, 42));
+        assertEquals(3, pool.size());
+    }
+
+    @Test
+    public void capacityIsRoundedUpToPowerOfTwo() {
+        RowPool pool = new RowPool(3);
+        for (int i = 0; i < 10; i++)
+            intern(pool, "row " + i);
+        assertEquals(4, pool.size());
+    }
+
+    @Test
+    public void evictionSparesRecentlyUsedRows() {
+        RowPool pool = new RowPool(4);
+        RowPool.Row a = intern(pool, "a");
+        RowPool.Row b = intern(pool, "b");
+        RowPool.Row c = intern(pool, "c");
+        RowPool.Row d = intern(pool, "d");
+        assertSame(a, intern(pool, "a")); // marks a as referenced
+        intern(pool, "e"); // evicts b, the first unreferenced row
+        assertEquals(4, pool.size());
+        assertSame(a, intern(pool, "a"));
+        assertSame(c, intern(pool, "c"));
+        assertSame(d, intern(pool, "d"));
+        // b was evicted, so it comes back as a new row, evicting e.
+        assertNotSame(b, intern(pool, "b"));
+        assertEquals(4, pool.size());
+    }
+
+    @Test
+    public void evictedRowsAreUnlinkedFromTheirBucket() {
+        // With colliding hashes, every row is in the same bucket, so
+        // eviction has to unlink rows from the middle of the chain.
+        RowPool pool = new RowPool(4);
+        RowPool.Row[] rows = new RowPool.Row[12];
+        for (int i = 0; i < rows.length; i++) {
+            int[] p = PackedRow.pack(chars("r" + (char) ('a' + i)),
+                    attributes(2, 0));
+            rows[i] = pool.intern(null, null, p, 7);
+            assertEquals(Math.min(i + 1, 4), pool.size());
+        }
+        for (int i = rows.length - 4; i < rows.length; i++) {
+            int[] p = PackedRow.pack(chars("r" + (char) ('a' + i)),
+                    attributes(2, 0));
+            assertSame(rows[i], pool.intern(null, null, p, 7));
+        }
+    }
+
+    @Test
+    public void clearEmptiesThePool() {
+        RowPool pool = new RowPool(4);
+        RowPool.Row a = intern(pool, "a");
+        pool.clear();
+        assertEquals(0, pool.size());
+        assertNotSame(a, intern(pool, "a"));
+    }
+
+    @Test
+    public void packedRowsRoundTrip() {
+        char[] c = chars("x\u00e9\u4e2d ");
+        long[] a = {VDUBuffer.BOLD | VDUBuffer.UNDERLINE,
+                1L << VDUBuffer.COLOR_FG_SHIFT,
+                16L << VDUBuffer.COLOR_FG_SHIFT |
+                16L << VDUBuffer.COLOR_BG_SHIFT | VDUBuffer.FULLWIDTH,
+                VDUBuffer.INVERT | 5L << VDUBuffer.COLOR_BG_SHIFT};
+        int[] packed = PackedRow.pack(c, a);
+        assertNotNull(packed);
+        char[] c2 = new char[4];
+        long[] a2 = new long[4];
+        PackedRow.unpack(packed, c2, a2, 4);
+        assertArrayEquals(c, c2);
+        assertArrayEquals(a, a2);
+    }
+
+    @Test
+    public void rowsWithOtherColoursArentPacked() {
+        assertNull(PackedRow.pack(chars("a"),
+                new long[] {17L << VDUBuffer.COLOR_FG_SHIFT}));
+        assertNull(PackedRow.pack(chars("a"),
+                new long[] {17L << VDUBuffer.COLOR_BG_SHIFT}));
+        assertNull(PackedRow.pack(chars("a"), new long[] {OTHER_COLOUR}));
+        RowPool.Row r = new RowPool(4).intern(chars("a"),
+                new long[] {OTHER_COLOUR});
+        assertNull(r.packed);
+        assertNotNull(r.chars);
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package jettyplay;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for ScreenDiff. As when decoding a ttyrec, each screen compared is a
+ * read-only copy of the one before, with some changes made to it.
+ * @author ais523
+ */
+public class ScreenDiffTest {
+
+    /* A 10x3 terminal, with every cell of the screen printable. */
+    private static vt320 filledTerminal() {
+        vt320 terminal = new vt320(10, 3);
+        for (int l = 0; l < 3; l++)
+            terminal.putString(0, l, "abcdefghij");
+        terminal.setCursorPosition(0, 0);
+        return terminal;
+    }
+
+    /* Finishes making changes to a terminal, and starts a copy of it that
+     * the next changes can be made to. */
+    private static vt320 next(vt320 terminal) {
+        terminal.makeReadOnly();
+        return TtyrecFrame.cloneState(terminal);
+    }
+
+    /* A ScreenDiff that has already seen the given terminal once. */
+    private static ScreenDiff seen(vt320 terminal) {
+        ScreenDiff diff = new ScreenDiff();
+        terminal.makeReadOnly();
+        diff.update(terminal);
+        return diff;
+    }
+
+    private static void assertChange(ScreenDiff diff, int i, int row,
+                                     int first, int end) {
+        assertEquals(row, diff.getChangedRow(i));
+        assertEquals(first, diff.getFirstColumn(i));
+        assertEquals(end, diff.getEndColumn(i));
+    }
+
+    @Test
+    public void firstUpdateIsComplete() {
+        ScreenDiff diff = new ScreenDiff();
+        assertTrue(diff.update(filledTerminal()));
+        assertTrue(diff.isComplete());
+        assertEquals(0, diff.getChangeCount());
+    }
+
+    @Test
+    public void unchangedScreenHasNoChanges() {
+        vt320 terminal = filledTerminal();
+        ScreenDiff diff = seen(terminal);
+        terminal = next(terminal);
+        assertFalse(diff.update(terminal));
+        assertFalse(diff.isComplete());
+        assertEquals(0, diff.getChangeCount());
+    }
+
+    @Test
+    public void changedCellsAreFound() {
+        vt320 terminal = filledTerminal();
+        ScreenDiff diff = seen(terminal);
+        terminal = next(terminal);
+        terminal.putString(3, 1, "XY");
+        terminal.putString(8, 2, "Z");
+        assertTrue(diff.update(terminal));
+        assertFalse(diff.isComplete());
+        assertEquals(2, diff.getChangeCount());
+        assertChange(diff, 0, 1, 3, 5);
+        assertChange(diff, 1, 2, 8, 9);
+    }
+
+    @Test
+    public void attributeChangesAreFound() {
+        vt320 terminal = filledTerminal();
+        ScreenDiff diff = seen(terminal);
+        terminal = next(terminal);
+        terminal.putString(4, 0, "e", VDUBuffer.BOLD);
+        assertTrue(diff.update(terminal));
+        assertEquals(1, diff.getChangeCount());
+        assertChange(diff, 0, 0, 4, 5);
+    }
+
+    @Test
+    public void rewritingTheSameCellsIsNotAChange() {
+        vt320 terminal = filledTerminal();
+        ScreenDiff diff = seen(terminal);
+        terminal = next(terminal);
+        terminal.putString(0, 1, "abc");
+        assertFalse(diff.update(terminal));
+        assertEquals(0, diff.getChangeCount());
+    }
+
+    @Test
+    public void cursorMoveChangesBothCells() {
+        vt320 terminal = filledTerminal();
+        ScreenDiff diff = seen(terminal);
+        terminal = next(terminal);
+        terminal.setCursorPosition(6, 2);
+        assertTrue(diff.update(terminal));
+        assertEquals(2, diff.getChangeCount());
+        assertChange(diff, 0, 0, 0, 1);
+        assertChange(diff, 1, 2, 6, 7);
+    }
+
+    @Test
+    public void cursorMoveWithinARowCoversBothCells() {
+        vt320 terminal = filledTerminal();
+        terminal.setCursorPosition(2, 1);
+        ScreenDiff diff = seen(terminal);
+        terminal = next(terminal);
+        terminal.setCursorPosition(7, 1);
+        assertTrue(diff.update(terminal));
+        assertEquals(1, diff.getChangeCount());
+        assertChange(diff, 0, 1, 2, 8);
+    }
+
+    @Test
+    public void cursorMoveIsMergedWithChangesOnItsRow() {
+        vt320 terminal = filledTerminal();
+        ScreenDiff diff = seen(terminal);
+        terminal = next(terminal);
+        terminal.putString(5, 0, "Q");
+        terminal.setCursorPosition(3, 0);
+        assertTrue(diff.update(terminal));
+        assertEquals(1, diff.getChangeCount());
+        assertChange(diff, 0, 0, 0, 6);
+    }
+
+    @Test
+    public void trailingControlCharactersAreChanged() {
+        vt320 terminal = filledTerminal();
+        terminal.putString(4, 1, "\u0001\u0002");
+        ScreenDiff diff = seen(terminal);
+        terminal = next(terminal);
+        terminal.putString(3, 1, "X");
+        assertTrue(diff.update(terminal));
+        assertEquals(1, diff.getChangeCount());
+        // The control characters at 4 and 5, but not the 'g' after them.
+        assertChange(diff, 0, 1, 3, 6);
+    }
+
+    @Test
+    public void trailingControlCharactersRunToTheEndOfTheRow() {
+        vt320 terminal = filledTerminal();
+        terminal.putString(7, 2, "\u0000\u0000\u0000");
+        ScreenDiff diff = seen(terminal);
+        terminal = next(terminal);
+        terminal.putString(6, 2, "X");
+        assertTrue(diff.update(terminal));
+        assertChange(diff, 0, 2, 6, 10);
+    }
+
+    @Test
+    public void controlCharactersBeforeAChangeAreNotChanged() {
+        vt320 terminal = filledTerminal();
+        terminal.putString(2, 0, "\u0001");
+        ScreenDiff diff = seen(terminal);
+        terminal = next(terminal);
+        terminal.putString(3, 0, "X");
+        assertTrue(diff.update(terminal));
+        assertChange(diff, 0, 0, 3, 4);
+    }
+
+    @Test
+    public void resizeIsComplete() {
+        vt320 terminal = filledTerminal();
+        ScreenDiff diff = seen(terminal);
+        terminal = next(terminal);
+        terminal.setScreenSize(12, 3);
+        assertTrue(diff.update(terminal));
+        assertTrue(diff.isComplete());
+        assertEquals(0, diff.getChangeCount());
+        // The new size is remembered for next time.
+        assertFalse(diff.update(terminal));
+        assertFalse(diff.isComplete());
+    }
+
+    @Test
+    public void resetMakesTheNextUpdateComplete() {
+        vt320 terminal = filledTerminal();
+        ScreenDiff diff = seen(terminal);
+        terminal = next(terminal);
+        diff.reset();
+        assertTrue(diff.update(terminal));
+        assertTrue(diff.isComplete());
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package jettyplay;
+
+import java.nio.charset.StandardCharsets;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests for SequenceScanner.
+ * @author ais523
+ */
+public class SequenceScannerTest {
+    private static final String ENTER = "\u001b[?1049h";
+    private static final String LEAVE = "\u001b[?1049l";
+
+    private static int scan(SequenceScanner s, String input) {
+        byte[] b = input.getBytes(StandardCharsets.ISO_8859_1);
+        return s.scan(b, 0, b.length);
+    }
+
+    @Test
+    public void findsEachSequence() {
+        SequenceScanner s = new SequenceScanner(ENTER, LEAVE);
+        assertEquals(0, scan(s, "plain text"));
+        assertEquals(1, scan(s, "a" + ENTER + "b"));
+        assertEquals(2, scan(s, LEAVE));
+        assertEquals(3, scan(s, LEAVE + "x" + ENTER));
+    }
+
+    @Test
+    public void sequenceSplitBetweenCalls() {
+        SequenceScanner s = new SequenceScanner(ENTER, LEAVE);
+        assertEquals(0, scan(s, "abc\u001b[?10"));
+        assertEquals(1, scan(s, "49hdef"));
+        // Split at every possible point, including one byte at a time.
+        for (int split = 1; split < LEAVE.length(); split++) {
+            s.reset();
+            assertEquals(0, scan(s, LEAVE.substring(0, split)));
+            assertEquals(2, scan(s, LEAVE.substring(split)));
+        }
+        s.reset();
+        int found = 0;
+        for (char c : ENTER.toCharArray())
+            found |= scan(s, String.valueOf(c));
+        assertEquals(1, found);
+    }
+
+    @Test
+    public void resetForgetsPartialSequence() {
+        SequenceScanner s = new SequenceScanner(ENTER, LEAVE);
+        assertEquals(0, scan(s, "\u001b[?1049"));
+        s.reset();
+        assertEquals(0, scan(s, "h"));
+    }
+
+    @Test
+    public void overlappingSequences() {
+        // A failed partial match must not hide a match that starts inside it.
+        SequenceScanner s = new SequenceScanner("abcd", "bce");
+        assertEquals(0, scan(s, "ab"));
+        assertEquals(2, scan(s, "ce"));
+        s = new SequenceScanner("aab");
+        assertEquals(1, scan(s, "aaaab"));
+    }
+
+    @Test
+    public void offsetAndLengthAreRespected() {
+        SequenceScanner s = new SequenceScanner(ENTER);
+        byte[] b = ("xx" + ENTER + "yy").getBytes(StandardCharsets.ISO_8859_1);
+        assertEquals(0, s.scan(b, 0, 5));
+        assertEquals(1, s.scan(b, 5, b.length - 5));
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package jettyplay;
+
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests for Utf8Validator.
+ * @author ais523
+ */
+public class Utf8ValidatorTest {
+    private static byte[] bytes(int... values) {
+        byte[] b = new byte[values.length];
+        for (int i = 0; i < values.length; i++)
+            b[i] = (byte) values[i];
+        return b;
+    }
+
+    private static int validate(Utf8Validator v, byte[] frame) {
+        return v.validate(frame, 0, frame.length);
+    }
+
+    @Test
+    public void wholeCharacters() {
+        Utf8Validator v = new Utf8Validator();
+        // "a", U+00E9, U+20AC, U+1F600
+        assertEquals(0, validate(v, bytes('a', 0xc3, 0xa9, 0xe2, 0x82, 0xac,
+                0xf0, 0x9f, 0x98, 0x80)));
+        assertEquals(0, v.getPendingBytes().length);
+    }
+
+    @Test
+    public void characterSplitAcrossFrames() {
+        Utf8Validator v = new Utf8Validator();
+        // U+20AC, split after its first two bytes
+        assertEquals(2, validate(v, bytes('a', 0xe2, 0x82)));
+        assertArrayEquals(bytes(0xe2, 0x82), v.getPendingBytes());
+        assertEquals(0, validate(v, bytes(0xac, 'b')));
+        assertEquals(0, v.getPendingBytes().length);
+        // U+1F600, split after its lead byte
+        assertEquals(1, validate(v, bytes(0xf0)));
+        assertArrayEquals(bytes(0xf0), v.getPendingBytes());
+        assertEquals(0, validate(v, bytes(0x9f, 0x98, 0x80)));
+    }
+
+    @Test
+    public void restrictedRangeCarriesAcrossFrames() {
+        Utf8Validator v = new Utf8Validator();
+        // The lead byte 0xe0 needs 0xa0 or more next, even in another frame.
+        assertEquals(1, validate(v, bytes(0xe0)));
+        assertEquals(-1, validate(v, bytes(0x80, 0x80)));
+        v = new Utf8Validator();
+        assertEquals(1, validate(v, bytes(0xed)));
+        assertEquals(-1, validate(v, bytes(0xa0, 0x80)));
+    }
+
+    @Test
+    public void partialCharacterLongerThanFrame() {
+        Utf8Validator v = new Utf8Validator();
+        assertEquals(1, validate(v, bytes(0xe2)));
+        // The incomplete character would start before this frame.
+        assertEquals(-1, validate(v, bytes(0x82)));
+        assertEquals(0, v.getPendingBytes().length);
+    }
+
+    @Test
+    public void overlongFormsAreRejected() {
+        assertEquals(-1, validate(new Utf8Validator(), bytes(0xc0, 0xaf)));
+        assertEquals(-1, validate(new Utf8Validator(), bytes(0xc1, 0xbf)));
+        assertEquals(-1, validate(new Utf8Validator(),
+                bytes(0xe0, 0x80, 0xaf)));
+        assertEquals(-1, validate(new Utf8Validator(),
+                bytes(0xf0, 0x80, 0x80, 0xaf)));
+        // The shortest forms just above the overlong ranges are fine.
+        assertEquals(0, validate(new Utf8Validator(), bytes(0xc2, 0x80)));
+        assertEquals(0, validate(new Utf8Validator(),
+                bytes(0xe0, 0xa0, 0x80)));
+        assertEquals(0, validate(new Utf8Validator(),
+                bytes(0xf0, 0x90, 0x80, 0x80)));
+    }
+
+    @Test
+    public void surrogatesAreRejected() {
+        // U+D800 and U+DFFF
+        assertEquals(-1, validate(new Utf8Validator(),
+                bytes(0xed, 0xa0, 0x80)));
+        assertEquals(-1, validate(new Utf8Validator(),
+                bytes(0xed, 0xbf, 0xbf)));
+        // U+D7FF and U+E000 surround them
+        assertEquals(0, validate(new Utf8Validator(),
+                bytes(0xed, 0x9f, 0xbf)));
+        assertEquals(0, validate(new Utf8Validator(),
+                bytes(0xee, 0x80, 0x80)));
+    }
+
+    @Test
+    public void codepointsBeyondUnicodeAreRejected() {
+        assertEquals(0, validate(new Utf8Validator(),
+                bytes(0xf4, 0x8f, 0xbf, 0xbf)));
+        assertEquals(-1, validate(new Utf8Validator(),
+                bytes(0xf4, 0x90, 0x80, 0x80)));
+        assertEquals(-1, validate(new Utf8Validator(),
+                bytes(0xf5, 0x80, 0x80, 0x80)));
+    }
+
+    @Test
+    public void invalidInputResetsState() {
+        Utf8Validator v = new Utf8Validator();
+        assertEquals(1, validate(v, bytes(0xc3)));
+        assertEquals(-1, validate(v, bytes('a')));
+        // The validator starts afresh after an error.
+        assertEquals(0, v.getPendingBytes().length);
+        assertEquals(0, validate(v, bytes(0xc3, 0xa9)));
+        assertEquals(-1, validate(v, bytes(0x80)));
+    }
+}